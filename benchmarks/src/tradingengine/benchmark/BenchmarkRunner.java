@@ -0,0 +1,34 @@
+package tradingengine.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * runs the benchmarks, and writes their results as JSON to the file named by
+ * -Dtradingengine.benchmark.result, benchmark-results.json by default, so
+ * that runs can be compared, eg with a JMH visualizer. takes the usual JMH
+ * arguments, eg a regexp of the benchmarks to run, -p products=10 to run
+ * them with fewer parameters, or -prof gc to measure what they allocate.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException,
+	    CommandLineOptionException {
+	CommandLineOptions commandLine = new CommandLineOptions(args);
+	ChainedOptionsBuilder options = new OptionsBuilder()
+		.parent(commandLine)
+		.resultFormat(ResultFormatType.JSON)
+		.result(System.getProperty("tradingengine.benchmark.result",
+			"benchmark-results.json"));
+	if (commandLine.getIncludes().isEmpty()) {
+	    options.include(BenchmarkRunner.class.getPackage().getName()
+		    + "\\..*");
+	}
+	new Runner(options.build()).run();
+    }
+}
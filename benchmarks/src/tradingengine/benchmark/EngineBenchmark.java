@@ -0,0 +1,98 @@
+package tradingengine.benchmark;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.NamingException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tradingengine.model.Market.MatchingMode;
+import tradingengine.model.SaleWriter;
+import tradingengine.model.TradingEngine;
+
+/**
+ * a whole trading session of an engine: taking new orders, expiring old
+ * ones, trading, noting prices and volumes, handing the sales to the
+ * {@link SaleWriter}, which writes to a DataSource that does nothing, and
+ * raising the events. the engine runs in actor mode, so that each call runs
+ * exactly one session on the benchmark's thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EngineBenchmark {
+
+    @Param({ "1", "10", "100" })
+    public int products;
+
+    @Param({ "10", "100" })
+    public int participants;
+
+    /** how many new orders each session takes, half of them sales orders */
+    @Param({ "10", "1000" })
+    public int ordersPerSession;
+
+    @Param({ "CHEAPEST_SELLER", "SWEEP" })
+    public MatchingMode matchingMode;
+
+    private final AtomicLong events = new AtomicLong();
+    private TradingEngine engine;
+    private String[] productIds;
+    private Random random;
+    private int id;
+
+    @Setup(Level.Trial)
+    public void createEngine() throws NamingException, IOException {
+	engine = new TradingEngine(0, 60000, (type, data) -> events
+		.incrementAndGet(), true);
+	engine.setMatchingMode(matchingMode);
+	engine.setDataSource(NoOpDataSource.newInstance());
+	engine.configurePersistence(SaleWriter.DEFAULT_CAPACITY,
+		SaleWriter.DEFAULT_BATCH_SIZE, SaleWriter.DEFAULT_LINGER_MS);
+	productIds = Fixtures.productIds(products);
+	random = new Random(42);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopEngine() {
+	// in actor mode, the engine cleans up on the next run after stopping
+	engine.stop();
+	engine.run();
+    }
+
+    @Benchmark
+    public long session() {
+	for (int i = 0; i < ordersPerSession; i++) {
+	    String productId = productIds[random.nextInt(products)];
+	    int participant = random.nextInt(participants);
+	    if (i % 2 == 0) {
+		engine.addSalesOrder("seller" + participant, productId,
+			Fixtures.quantity(random), Fixtures.price(random),
+			id++);
+	    } else {
+		engine.addPurchaseOrder("buyer" + participant, productId,
+			Fixtures.quantity(random), id++);
+	    }
+	}
+	engine.run();
+	return events.get();
+    }
+}
@@ -0,0 +1,73 @@
+package tradingengine.benchmark;
+
+import java.util.Random;
+
+import tradingengine.model.Buyer;
+import tradingengine.model.Market;
+import tradingengine.model.PurchaseOrder;
+import tradingengine.model.SalesOrder;
+import tradingengine.model.Seller;
+
+/**
+ * builds the markets which the benchmarks work on. the same arguments always
+ * give the same market, so that runs can be compared.
+ */
+final class Fixtures {
+
+    /** orders are priced at one of this many whole prices, from 1.0 up */
+    static final int PRICE_LEVELS = 10;
+
+    private static final long SEED = 42;
+
+    private Fixtures() {
+    }
+
+    /** @return "0", "1", ... - ids are numbers, as they are persisted */
+    static String[] productIds(int products) {
+	String[] productIds = new String[products];
+	for (int i = 0; i < products; i++) {
+	    productIds[i] = String.valueOf(i);
+	}
+	return productIds;
+    }
+
+    /**
+     * @return a market in which each product has the given number of resting
+     *         sales orders and purchase orders, spread over the given number
+     *         of sellers and buyers. about half of the purchase orders accept
+     *         the cheapest price.
+     */
+    static Market market(int products, int participants,
+	    int ordersPerProduct) {
+	Random random = new Random(SEED);
+	Market market = new Market(60000);
+	Seller[] sellers = new Seller[participants];
+	Buyer[] buyers = new Buyer[participants];
+	for (int i = 0; i < participants; i++) {
+	    sellers[i] = new Seller("seller" + i);
+	    buyers[i] = new Buyer("buyer" + i);
+	    market.addSeller(sellers[i]);
+	    market.addBuyer(buyers[i]);
+	}
+	int id = 0;
+	for (String productId : productIds(products)) {
+	    for (int i = 0; i < ordersPerProduct; i++) {
+		market.addSalesOrder(sellers[random.nextInt(participants)],
+			new SalesOrder(price(random), productId,
+				quantity(random), id++));
+		market.addPurchaseOrder(buyers[random.nextInt(participants)],
+			new PurchaseOrder(productId, quantity(random),
+				price(random), id++));
+	    }
+	}
+	return market;
+    }
+
+    static double price(Random random) {
+	return 1.0 + random.nextInt(PRICE_LEVELS);
+    }
+
+    static int quantity(Random random) {
+	return 1 + random.nextInt(10);
+    }
+}
@@ -0,0 +1,78 @@
+package tradingengine.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tradingengine.model.Buyer;
+import tradingengine.model.Market;
+import tradingengine.model.OrderBook;
+import tradingengine.model.PurchaseOrder;
+import tradingengine.model.Sale;
+import tradingengine.model.SalesOrder;
+import tradingengine.model.Seller;
+
+/**
+ * the operations of a market besides whole trade sittings, which all change
+ * it, so every call gets a fresh market.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MarketBenchmark {
+
+    @Param({ "1", "10", "100" })
+    public int products;
+
+    @Param({ "10", "100" })
+    public int participants;
+
+    @Param({ "10", "100", "1000" })
+    public int ordersPerProduct;
+
+    private Market market;
+    private Buyer buyer;
+    private Seller seller;
+
+    @Setup(Level.Invocation)
+    public void createMarket() {
+	market = Fixtures.market(products, participants, ordersPerProduct);
+	// the seller of the cheapest order and the buyer of the best one, so
+	// that there is something to sell
+	OrderBook book = market.getOrderBook("0");
+	seller = book.getCheapestSalesOrder().getSeller();
+	buyer = book.getBestPurchaseOrder().getBuyer();
+    }
+
+    @Benchmark
+    public List<Sale> createSale() {
+	return market.createSale(buyer, seller, "0");
+    }
+
+    /** every order is out of date */
+    @Benchmark
+    public List<SalesOrder> expireSalesOrders() {
+	return market.expireSalesOrders(Long.MAX_VALUE);
+    }
+
+    /** every order is out of date */
+    @Benchmark
+    public List<PurchaseOrder> expirePurchaseOrders() {
+	return market.expirePurchaseOrders(Long.MAX_VALUE);
+    }
+}
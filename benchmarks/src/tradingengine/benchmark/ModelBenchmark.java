@@ -0,0 +1,124 @@
+package tradingengine.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tradingengine.model.Buyer;
+import tradingengine.model.Model;
+import tradingengine.model.PurchaseOrder;
+import tradingengine.model.Sale;
+import tradingengine.model.SalesOrder;
+import tradingengine.model.Seller;
+
+/**
+ * comparing, hashing and printing orders and sales, as the model does it, and
+ * by reflection, as {@link Model} does it for classes which do not do it
+ * themselves. finding an order in a list is what removing it costs, without
+ * changing the list, so all calls can share it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModelBenchmark {
+
+    @Param({ "10", "100", "1000" })
+    public int orders;
+
+    private final List<SalesOrder> salesOrders = new ArrayList<>();
+    private SalesOrder last;
+    private Sale sale;
+
+    @Setup
+    public void createOrders() {
+	Random random = new Random(42);
+	Seller seller = new Seller("seller");
+	for (int i = 0; i < orders; i++) {
+	    SalesOrder so = new SalesOrder(Fixtures.price(random), "0",
+		    Fixtures.quantity(random), i);
+	    so.setSeller(seller);
+	    salesOrders.add(so);
+	}
+	last = salesOrders.get(orders - 1);
+	Buyer buyer = new Buyer("buyer");
+	PurchaseOrder po = new PurchaseOrder("0", 10, 10.0, orders);
+	po.setBuyer(buyer);
+	sale = new Sale(buyer, seller, "0", last.getPrice(), 1);
+	sale.setSalesOrder(last);
+	sale.setPurchaseOrder(po);
+    }
+
+    @Benchmark
+    public int indexOf() {
+	return salesOrders.indexOf(last);
+    }
+
+    @Benchmark
+    public int reflectiveIndexOf() {
+	for (int i = 0; i < salesOrders.size(); i++) {
+	    if (EqualsBuilder.reflectionEquals(salesOrders.get(i), last,
+		    Collections.emptySet())) {
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+    @Benchmark
+    public int hashCodeOfOrder() {
+	return last.hashCode();
+    }
+
+    @Benchmark
+    public int reflectiveHashCodeOfOrder() {
+	return HashCodeBuilder.reflectionHashCode(last, Collections.emptySet());
+    }
+
+    @Benchmark
+    public String orderToString() {
+	return last.toString();
+    }
+
+    @Benchmark
+    public String orderToJson() {
+	return last.toJson();
+    }
+
+    @Benchmark
+    public String reflectiveOrderToString() {
+	return ToStringBuilder.reflectionToString(last,
+		ToStringStyle.SHORT_PREFIX_STYLE);
+    }
+
+    @Benchmark
+    public String saleToString() {
+	return sale.toString();
+    }
+
+    @Benchmark
+    public String reflectiveSaleToString() {
+	return ToStringBuilder.reflectionToString(sale,
+		ToStringStyle.SHORT_PREFIX_STYLE);
+    }
+}
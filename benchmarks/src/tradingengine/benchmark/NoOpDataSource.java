@@ -0,0 +1,47 @@
+package tradingengine.benchmark;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+import javax.sql.DataSource;
+
+/**
+ * a DataSource which accepts every statement and does nothing, so that
+ * benchmarks and load tests measure the engine rather than a database.
+ */
+public final class NoOpDataSource {
+
+    private NoOpDataSource() {
+    }
+
+    public static DataSource newInstance() {
+	return proxy(DataSource.class);
+    }
+
+    private static <T> T proxy(Class<T> type) {
+	Object proxy = Proxy.newProxyInstance(NoOpDataSource.class
+		.getClassLoader(), new Class<?>[] { type }, (self, method,
+		args) -> {
+	    Class<?> returnType = method.getReturnType();
+	    if (returnType == Connection.class
+		    || returnType == PreparedStatement.class
+		    || returnType == ResultSet.class) {
+		return proxy(returnType);
+	    } else if (returnType == int[].class) {
+		return new int[0];
+	    } else if (returnType == boolean.class) {
+		return false;
+	    } else if (returnType == int.class) {
+		return 0;
+	    } else if (returnType == long.class) {
+		return 0L;
+	    } else if (returnType == double.class) {
+		return 0.0;
+	    }
+	    return null;
+	});
+	return type.cast(proxy);
+    }
+}
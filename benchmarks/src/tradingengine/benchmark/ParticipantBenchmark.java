@@ -0,0 +1,80 @@
+package tradingengine.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tradingengine.model.Buyer;
+import tradingengine.model.Market;
+import tradingengine.model.PurchaseOrder;
+import tradingengine.model.SalesOrder;
+import tradingengine.model.Seller;
+
+/**
+ * the lookups of a single seller or buyer, which hold the orders of all
+ * products. the removal of outdated orders is measured when none are out of
+ * date yet, as is the case almost every time it is called, so nothing
+ * changes and all calls can share a market.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParticipantBenchmark {
+
+    @Param({ "1", "10", "100" })
+    public int products;
+
+    @Param({ "10", "100" })
+    public int participants;
+
+    @Param({ "10", "100", "1000" })
+    public int ordersPerProduct;
+
+    private Seller seller;
+    private Buyer buyer;
+    private String productId;
+
+    @Setup
+    public void createMarket() {
+	Market market = Fixtures.market(products, participants,
+		ordersPerProduct);
+	SalesOrder cheapest = market.getOrderBook("0").getCheapestSalesOrder();
+	seller = cheapest.getSeller();
+	buyer = market.getOrderBook("0").getBestPurchaseOrder().getBuyer();
+	productId = cheapest.getProductId();
+    }
+
+    @Benchmark
+    public SalesOrder getCheapestSalesOrder() {
+	return seller.getCheapestSalesOrder(productId);
+    }
+
+    @Benchmark
+    public List<PurchaseOrder> getRelevantPurchaseOrders() {
+	return buyer.getRelevantPurchaseOrders(productId, 1.0);
+    }
+
+    @Benchmark
+    public List<SalesOrder> removeOutdatedSalesOrders() {
+	return seller.removeOutdatedSalesOrders(Long.MAX_VALUE);
+    }
+
+    @Benchmark
+    public List<PurchaseOrder> removeOutdatedPurchaseOrders() {
+	return buyer.removeOutdatedPurchaseOrders(Long.MAX_VALUE);
+    }
+}
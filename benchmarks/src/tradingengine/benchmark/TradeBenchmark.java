@@ -0,0 +1,92 @@
+package tradingengine.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tradingengine.model.Market;
+import tradingengine.model.Market.MatchingMode;
+import tradingengine.model.Sale;
+
+/**
+ * a single trade sitting of a market, see {@link Market#trade()}. trading
+ * removes the orders which it fills, so every sitting gets a fresh market.
+ *
+ * run with -prof gc to see what a sitting allocates: gc.alloc.rate.norm of
+ * {@link #tradeInto} should come to little more than a sale per match.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TradeBenchmark {
+
+    @Param({ "1", "10", "100" })
+    public int products;
+
+    @Param({ "10", "100" })
+    public int participants;
+
+    @Param({ "10", "100", "1000" })
+    public int ordersPerProduct;
+
+    @Param({ "CHEAPEST_SELLER", "SWEEP" })
+    public MatchingMode matchingMode;
+
+    /** threads trading the products in parallel, 0 for none */
+    @Param({ "0" })
+    public int parallelism;
+
+    private ForkJoinPool pool;
+    private Market market;
+    private final List<Sale> sales = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void createPool() {
+	pool = parallelism > 0 ? new ForkJoinPool(parallelism) : null;
+    }
+
+    @Setup(Level.Invocation)
+    public void createMarket() {
+	market = Fixtures.market(products, participants, ordersPerProduct);
+	market.setMatchingMode(matchingMode);
+	market.setTradingPool(pool);
+	sales.clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void shutdownPool() {
+	if (pool != null) {
+	    pool.shutdown();
+	}
+    }
+
+    @Benchmark
+    public List<Sale> trade() {
+	return market.trade();
+    }
+
+    /** as the engine trades, into a list which it reuses */
+    @Benchmark
+    public List<Sale> tradeInto() {
+	market.trade(sales);
+	return sales;
+    }
+}
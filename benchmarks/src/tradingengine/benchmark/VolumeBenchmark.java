@@ -0,0 +1,58 @@
+package tradingengine.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tradingengine.model.VolumeWindow;
+
+/**
+ * noting the volume of a sale, as the engine does for every sale it makes.
+ * the clock is simulated, so that buckets roll over at the given rate rather
+ * than however fast the benchmark runs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VolumeBenchmark {
+
+    /** how many sales are made per bucket of the window */
+    @Param({ "1", "100", "10000" })
+    public int salesPerBucket;
+
+    private VolumeWindow window;
+    private long sales;
+
+    @Setup
+    public void createWindow() {
+	window = new VolumeWindow("0", 0);
+	sales = 0;
+    }
+
+    @Benchmark
+    public VolumeWindow updateMarketVolume() {
+	long now = sales++ * VolumeWindow.BUCKET_MS / salesPerBucket;
+	window.add(now, 5, 27.5);
+	return window;
+    }
+
+    @Benchmark
+    public VolumeWindow expireMarketVolume() {
+	long now = sales++ * VolumeWindow.BUCKET_MS / salesPerBucket;
+	window.expire(now);
+	return window;
+    }
+}
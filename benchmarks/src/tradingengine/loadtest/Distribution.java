@@ -0,0 +1,44 @@
+package tradingengine.loadtest;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * picks one of n items, eg products or users, either uniformly or Zipf
+ * distributed, so that a few hot items get most of the picks. with a skew
+ * of s, the k-th item is picked with a probability proportional to 1/k^s, so
+ * a skew of 0 is uniform, and the higher the skew, the hotter the first
+ * items.
+ */
+public final class Distribution {
+
+    // the probability of picking any of the items up to each one
+    private final double[] cumulative;
+
+    public Distribution(int n, double skew) {
+	if (n < 1) {
+	    throw new IllegalArgumentException("need at least one item, not "
+		    + n);
+	}
+	cumulative = new double[n];
+	double sum = 0.0;
+	for (int k = 0; k < n; k++) {
+	    sum += 1.0 / Math.pow(k + 1, skew);
+	    cumulative[k] = sum;
+	}
+	for (int k = 0; k < n; k++) {
+	    cumulative[k] /= sum;
+	}
+    }
+
+    /** @return the index of the next item, from 0 to n - 1 */
+    public int next(Random random) {
+	int i = Arrays.binarySearch(cumulative, random.nextDouble());
+	return Math.min(i < 0 ? -i - 1 : i, cumulative.length - 1);
+    }
+
+    /** @return the share of all picks which the given item gets */
+    public double share(int i) {
+	return cumulative[i] - (i == 0 ? 0.0 : cumulative[i - 1]);
+    }
+}
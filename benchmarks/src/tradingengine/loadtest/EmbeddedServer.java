@@ -0,0 +1,71 @@
+package tradingengine.loadtest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import javax.naming.Context;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+/**
+ * a Jetty on localhost, serving the given servlets on the paths of their
+ * {@link WebServlet} annotations, as a container would. unless
+ * java.naming.factory.initial says otherwise, sales are persisted nowhere,
+ * see {@link NoOpNaming}.
+ */
+public class EmbeddedServer implements AutoCloseable {
+
+    private static final String HOST = "127.0.0.1";
+
+    private final Server server;
+    private final int port;
+
+    public EmbeddedServer(List<Class<? extends HttpServlet>> servlets)
+	    throws Exception {
+	// must be set before the servlets start their engines
+	if (System.getProperty(Context.INITIAL_CONTEXT_FACTORY) == null) {
+	    System.setProperty(Context.INITIAL_CONTEXT_FACTORY,
+		    NoOpNaming.class.getName());
+	}
+	server = new Server(new InetSocketAddress(HOST, 0));
+	ServletContextHandler context = new ServletContextHandler();
+	context.setContextPath("/");
+	for (Class<? extends HttpServlet> servlet : servlets) {
+	    WebServlet mapping = servlet.getAnnotation(WebServlet.class);
+	    ServletHolder holder = new ServletHolder(servlet
+		    .getDeclaredConstructor().newInstance());
+	    holder.setAsyncSupported(mapping.asyncSupported());
+	    for (String path : mapping.urlPatterns()) {
+		context.addServlet(holder, path);
+	    }
+	}
+	server.setHandler(context);
+	server.start();
+	port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+    }
+
+    /** @return the URL the servlets are served at, without a trailing / */
+    public String getUrl() {
+	return "http://" + HOST + ":" + port;
+    }
+
+    /** stops Jetty, keeping the interrupt flag if interrupted meanwhile */
+    @Override
+    public void close() throws IOException {
+	try {
+	    server.stop();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	} catch (IOException | RuntimeException e) {
+	    throw e;
+	} catch (Exception e) {
+	    throw new IOException("failed to stop the server", e);
+	}
+    }
+}
@@ -0,0 +1,322 @@
+package tradingengine.loadtest;
+
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServlet;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import tradingengine.web.TradingEngineServlet;
+import tradingengine.web.TradingEngineServletWithActors;
+
+/**
+ * Trades over HTTP like many users at once, to measure how long orders take
+ * to be filled, and how many are filled per second, by the thread based
+ * engines (/buy, /sell, /result) or the actor based ones (/buy2, /sell2,
+ * /result2), or both one after the other, so that they can be compared.
+ *
+ * Each virtual user has a connection of its own, and loops: it places an
+ * order for a product, buying or selling at random, and long polls its
+ * result until it is filled, then places the next. The time from placing an
+ * order until the result shows it completely filled is recorded in an
+ * HdrHistogram. Since a user waits for each order before placing the next,
+ * a server which stalls also slows down the load, so the latencies hide
+ * part of a stall, and should be read together with the throughput.
+ *
+ * Configured with system properties:
+ *
+ * <pre>
+ * loadtest.url            the server, eg http://localhost:8080/tradingengine.
+ *                         by default, an embedded one is started, see
+ *                         {@link EmbeddedServer}
+ * loadtest.engines        threads, actors, or threads,actors to compare
+ * loadtest.users          the number of virtual users, ie connections
+ * loadtest.products       how many products are traded
+ * loadtest.products.skew  how much hotter some products are, see
+ *                         {@link Distribution}. 0 is uniform
+ * loadtest.accounts       how many user ids place the orders
+ * loadtest.accounts.skew  how much more active some user ids are
+ * loadtest.warmup         seconds of load before measuring
+ * loadtest.duration       seconds of measuring
+ * loadtest.patience       ms a user waits for a fill before placing the next
+ *                         order anyway
+ * </pre>
+ */
+public class LoadGenerator {
+
+    private static final Logger LOGGER = LogManager.getLogger("loadGenerator");
+
+    static final String URL = System.getProperty("loadtest.url");
+    static final String ENGINES = System.getProperty("loadtest.engines",
+	    "threads,actors");
+    static final int USERS = Integer.getInteger("loadtest.users", 1500);
+    static final int PRODUCTS = Integer.getInteger("loadtest.products", 100);
+    static final double PRODUCTS_SKEW = Double.parseDouble(System
+	    .getProperty("loadtest.products.skew", "1.0"));
+    static final int ACCOUNTS = Integer.getInteger("loadtest.accounts", 10000);
+    static final double ACCOUNTS_SKEW = Double.parseDouble(System
+	    .getProperty("loadtest.accounts.skew", "0.0"));
+    static final long WARMUP = Long.getLong("loadtest.warmup", 10);
+    static final long DURATION = Long.getLong("loadtest.duration", 60);
+    static final long PATIENCE = Long.getLong("loadtest.patience", 10000);
+
+    // how long a single /result request waits for a fill
+    private static final long POLL_WAIT = 5000;
+    private static final int MAX_QUANTITY = 10;
+    private static final int PRICE_LEVELS = 10;
+    // latencies are recorded in micros, up to an hour
+    private static final long HIGHEST_LATENCY = TimeUnit.HOURS.toMicros(1);
+    private static final Pattern ORDER_ID = Pattern.compile("\"id\":(\\d+)");
+
+    private final String engine;
+    private final String url;
+    private final String suffix;
+    private final HttpClient client = HttpClient.newBuilder().version(
+	    HttpClient.Version.HTTP_1_1).build();
+    private final Distribution products = new Distribution(PRODUCTS,
+	    PRODUCTS_SKEW);
+    private final Distribution accounts = new Distribution(ACCOUNTS,
+	    ACCOUNTS_SKEW);
+    private final Recorder latencies = new Recorder(HIGHEST_LATENCY, 3);
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder abandoned = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final CountDownLatch stopped = new CountDownLatch(USERS);
+    private volatile boolean stopping;
+
+    public LoadGenerator(String engine, String url) {
+	this.engine = engine;
+	this.url = url;
+	this.suffix = suffix(engine);
+    }
+
+    public static void main(String[] args) throws Exception {
+	List<String> engines = Arrays.asList(ENGINES.split(","));
+	EmbeddedServer server = null;
+	String url = URL;
+	if (url == null) {
+	    List<Class<? extends HttpServlet>> servlets = new ArrayList<>();
+	    for (String engine : engines) {
+		servlets.add(suffix(engine).isEmpty()
+			? TradingEngineServlet.class
+			: TradingEngineServletWithActors.class);
+	    }
+	    server = new EmbeddedServer(servlets);
+	    url = server.getUrl();
+	}
+
+	List<Summary> summaries = new ArrayList<>();
+	for (String engine : engines) {
+	    summaries.add(new LoadGenerator(engine, url).run());
+	}
+	System.out.println();
+	Summary.printHeader(System.out);
+	for (Summary summary : summaries) {
+	    summary.print(System.out);
+	}
+
+	if (server != null) {
+	    server.close();
+	}
+	// the engines' threads do not stop by themselves
+	System.exit(0);
+    }
+
+    private static String suffix(String engine) {
+	switch (engine) {
+	case "threads":
+	    return "";
+	case "actors":
+	    return "2";
+	default:
+	    throw new IllegalArgumentException("unknown engine " + engine
+		    + ", use threads or actors");
+	}
+    }
+
+    /** puts the load on the engine, and measures it once warmed up */
+    public Summary run() throws InterruptedException {
+	System.out.println(String.format("%s: %d users trading %d products "
+		+ "(skew %.2f) as %d users (skew %.2f) on %s", engine, USERS,
+		PRODUCTS, PRODUCTS_SKEW, ACCOUNTS, ACCOUNTS_SKEW, url));
+	for (int i = 0; i < USERS; i++) {
+	    placeOrder();
+	}
+
+	report("warmup", WARMUP, null);
+	requests.reset();
+	timedOut.reset();
+	abandoned.reset();
+	errors.reset();
+
+	Histogram total = new Histogram(HIGHEST_LATENCY, 3);
+	long start = System.nanoTime();
+	report("run", DURATION, total);
+	double seconds = (System.nanoTime() - start) / 1e9;
+	Summary summary = new Summary(engine, total, seconds, requests.sum(),
+		timedOut.sum(), abandoned.sum(), errors.sum());
+
+	stopping = true;
+	if (!stopped.await(PATIENCE + POLL_WAIT, TimeUnit.MILLISECONDS)) {
+	    System.out.println(stopped.getCount()
+		    + " users are still waiting for their orders");
+	}
+	return summary;
+    }
+
+    /**
+     * prints the fills per second and latencies of every second, adding
+     * them to the total, if any.
+     */
+    private void report(String phase, long seconds, Histogram total)
+	    throws InterruptedException {
+	long next = System.nanoTime();
+	latencies.getIntervalHistogram();
+	for (int i = 1; i <= seconds; i++) {
+	    next += TimeUnit.SECONDS.toNanos(1);
+	    TimeUnit.NANOSECONDS.sleep(next - System.nanoTime());
+	    Histogram interval = latencies.getIntervalHistogram();
+	    if (total != null) {
+		total.add(interval);
+	    }
+	    System.out.println(String.format("%s %3ds: %7d fills/s, p50 %9.3f"
+		    + "ms, p99 %9.3fms, max %9.3fms, %d errors", phase, i,
+		    interval.getTotalCount(), millis(interval
+			    .getValueAtPercentile(50)), millis(interval
+			    .getValueAtPercentile(99)), millis(interval
+			    .getMaxValue()), errors.sum()));
+	}
+    }
+
+    private void placeOrder() {
+	if (stopping) {
+	    stopped.countDown();
+	    return;
+	}
+	ThreadLocalRandom random = ThreadLocalRandom.current();
+	String query = "?userId=user" + accounts.next(random) + "&productId="
+		+ products.next(random) + "&quantity="
+		+ (1 + random.nextInt(MAX_QUANTITY));
+	String path;
+	if (random.nextBoolean()) {
+	    path = "/sell" + suffix + query + "&price="
+		    + (1 + random.nextInt(PRICE_LEVELS));
+	} else {
+	    path = "/buy" + suffix + query;
+	}
+	long start = System.nanoTime();
+	get(path, body -> {
+	    Matcher m = ORDER_ID.matcher(body);
+	    if (!m.find()) {
+		throw new IllegalStateException("no order id in " + body);
+	    }
+	    awaitFill(Integer.parseInt(m.group(1)), start);
+	});
+    }
+
+    private void awaitFill(int orderId, long start) {
+	get("/result" + suffix + "?id=" + orderId + "&wait=" + POLL_WAIT,
+		body -> {
+		    long now = System.nanoTime();
+		    if (body.contains("\"completed\":true")) {
+			latencies.recordValue(Math.min(HIGHEST_LATENCY,
+				(now - start) / 1000));
+			placeOrder();
+		    } else if (body.contains("\"timedOut\":true")) {
+			timedOut.increment();
+			placeOrder();
+		    } else if (now - start > TimeUnit.MILLISECONDS
+			    .toNanos(PATIENCE)) {
+			abandoned.increment();
+			placeOrder();
+		    } else {
+			awaitFill(orderId, start);
+		    }
+		});
+    }
+
+    /**
+     * requests the path, and hands the body of the answer on. if that fails,
+     * the user gives up on the order, and places the next.
+     */
+    private void get(String path, Consumer<String> then) {
+	requests.increment();
+	HttpRequest request = HttpRequest.newBuilder(URI.create(url + path))
+		.build();
+	client.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+		.thenAccept(response -> {
+		    if (response.statusCode() != 200) {
+			throw new IllegalStateException(path + " answered "
+				+ response.statusCode());
+		    }
+		    then.accept(response.body());
+		}).exceptionally(e -> {
+		    errors.increment();
+		    LOGGER.debug("request failed", e);
+		    placeOrder();
+		    return null;
+		});
+    }
+
+    private static double millis(long micros) {
+	return micros / 1000.0;
+    }
+
+    /** the result of a run against one engine */
+    public static class Summary {
+	private final String engine;
+	private final Histogram latencies;
+	private final double seconds;
+	private final long requests;
+	private final long timedOut;
+	private final long abandoned;
+	private final long errors;
+
+	Summary(String engine, Histogram latencies, double seconds,
+		long requests, long timedOut, long abandoned, long errors) {
+	    this.engine = engine;
+	    this.latencies = latencies;
+	    this.seconds = seconds;
+	    this.requests = requests;
+	    this.timedOut = timedOut;
+	    this.abandoned = abandoned;
+	    this.errors = errors;
+	}
+
+	static void printHeader(PrintStream out) {
+	    out.println(String.format("%-8s %9s %9s %9s %9s %9s %9s %9s "
+		    + "%8s %8s %8s", "engine", "fills/s", "req/s",
+		    "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms",
+		    "timedout", "gave up", "errors"));
+	}
+
+	void print(PrintStream out) {
+	    out.println(String.format("%-8s %9.0f %9.0f %9.3f %9.3f %9.3f "
+		    + "%9.3f %9.3f %8d %8d %8d", engine, latencies
+		    .getTotalCount() / seconds, requests / seconds,
+		    millis(latencies.getValueAtPercentile(50)), millis(latencies
+			    .getValueAtPercentile(90)), millis(latencies
+			    .getValueAtPercentile(99)), millis(latencies
+			    .getValueAtPercentile(99.9)), millis(latencies
+			    .getMaxValue()), timedOut, abandoned, errors));
+	}
+    }
+}
@@ -0,0 +1,26 @@
+package tradingengine.loadtest;
+
+import java.lang.reflect.Proxy;
+import java.util.Hashtable;
+
+import javax.naming.Context;
+import javax.naming.spi.InitialContextFactory;
+
+import tradingengine.benchmark.NoOpDataSource;
+
+/**
+ * the naming of an embedded container, which has none of its own: every
+ * lookup, ie the engines' java:comp/env/jdbc/mysql, finds a DataSource which
+ * discards the sales. see {@link EmbeddedServer}.
+ */
+public class NoOpNaming implements InitialContextFactory {
+
+    @Override
+    public Context getInitialContext(Hashtable<?, ?> environment) {
+	Object dataSource = NoOpDataSource.newInstance();
+	return (Context) Proxy.newProxyInstance(NoOpNaming.class
+		.getClassLoader(), new Class<?>[] { Context.class }, (self,
+		method, args) -> method.getName().equals("lookup") ? dataSource
+		: null);
+    }
+}
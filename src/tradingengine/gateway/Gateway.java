@@ -0,0 +1,459 @@
+package tradingengine.gateway;
+
+import static tradingengine.gateway.GatewayProtocol.ACK;
+import static tradingengine.gateway.GatewayProtocol.BAD_PRICE;
+import static tradingengine.gateway.GatewayProtocol.BAD_QUANTITY;
+import static tradingengine.gateway.GatewayProtocol.BUY;
+import static tradingengine.gateway.GatewayProtocol.FILL;
+import static tradingengine.gateway.GatewayProtocol.LOGON;
+import static tradingengine.gateway.GatewayProtocol.LOGON_ACK;
+import static tradingengine.gateway.GatewayProtocol.NOT_LOGGED_ON;
+import static tradingengine.gateway.GatewayProtocol.REJECT;
+import static tradingengine.gateway.GatewayProtocol.SELL;
+import static tradingengine.gateway.GatewayProtocol.TIMEOUT;
+import static tradingengine.gateway.GatewayProtocol.UNKNOWN_PRODUCT;
+import static tradingengine.gateway.GatewayProtocol.USER_LENGTH;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import tradingengine.model.PurchaseOrder;
+import tradingengine.model.Sale;
+import tradingengine.model.SalesOrder;
+import tradingengine.model.TradingEngine;
+import tradingengine.model.TradingEngine.Event;
+import tradingengine.model.TradingEngine.EventType;
+import tradingengine.model.TradingEngine.Listener;
+
+/**
+ * Takes orders over TCP in the binary {@link GatewayProtocol}, and hands them
+ * straight to the engines, without a servlet container in between. A single
+ * thread serves all connections with a selector, reading into and writing
+ * from direct buffers of each connection, and decoding orders in place, so
+ * that reading an order allocates nothing but the order itself.
+ *
+ * The gateway must also get the engines' events, see {@link #onEvents}, so
+ * that it can send the fills and timeouts of its orders back to the
+ * connections they came from. Those are written on the thread which
+ * delivers the events, and only left to the selector if the connection
+ * cannot take them straight away.
+ */
+public class Gateway implements Listener {
+
+    private static final Logger LOGGER = LogManager.getLogger("gateway");
+
+    static final int READ_BUFFER_SIZE = 64 * 1024;
+    static final int WRITE_BUFFER_SIZE = 256 * 1024;
+
+    private final InetSocketAddress address;
+    private final Map<String, TradingEngine> engines;
+    private final AtomicInteger ids;
+
+    // the product ids as sent, sorted, and the product id of each
+    private final long[] productKeys;
+    private final String[] productIds;
+
+    // the orders which came through the gateway, until they are completed
+    // or time out
+    private final Map<Integer, Session> orders = new ConcurrentHashMap<>();
+
+    private ServerSocketChannel server;
+    private Selector selector;
+    private Thread thread;
+    private volatile boolean running;
+
+    /**
+     * @param address
+     *            where to listen, port 0 for any free port
+     * @param engines
+     *            the engine for each product id
+     * @param ids
+     *            where to take order ids from, shared with other ways of
+     *            adding orders
+     */
+    public Gateway(InetSocketAddress address,
+	    Map<String, TradingEngine> engines, AtomicInteger ids) {
+	this.address = address;
+	this.engines = engines;
+	this.ids = ids;
+
+	long[] keys = new long[engines.size()];
+	int n = 0;
+	for (String productId : engines.keySet()) {
+	    keys[n++] = GatewayProtocol.productKey(productId);
+	}
+	Arrays.sort(keys);
+	this.productKeys = keys;
+	this.productIds = new String[keys.length];
+	for (String productId : engines.keySet()) {
+	    productIds[Arrays.binarySearch(keys, GatewayProtocol
+		    .productKey(productId))] = productId;
+	}
+    }
+
+    /** starts listening, on a thread of its own */
+    public void start() throws IOException {
+	selector = Selector.open();
+	server = ServerSocketChannel.open();
+	server.bind(address);
+	server.configureBlocking(false);
+	server.register(selector, SelectionKey.OP_ACCEPT);
+	running = true;
+	thread = new Thread(this::run, "gateway");
+	thread.setDaemon(true);
+	thread.start();
+	LOGGER.info("gateway listening on " + server.getLocalAddress());
+    }
+
+    /** @return the port the gateway listens on, once started */
+    public int getPort() throws IOException {
+	return ((InetSocketAddress) server.getLocalAddress()).getPort();
+    }
+
+    /** stops listening and closes all connections */
+    public void close() throws InterruptedException {
+	running = false;
+	selector.wakeup();
+	thread.join(5000);
+    }
+
+    private void run() {
+	while (running) {
+	    try {
+		selector.select();
+		Iterator<SelectionKey> keys = selector.selectedKeys()
+			.iterator();
+		while (keys.hasNext()) {
+		    SelectionKey key = keys.next();
+		    keys.remove();
+		    if (!key.isValid()) {
+			continue;
+		    }
+		    if (key.isAcceptable()) {
+			accept();
+		    } else {
+			Session session = (Session) key.attachment();
+			if (key.isReadable()) {
+			    session.read();
+			}
+			if (key.isValid() && key.isWritable()) {
+			    session.flush();
+			}
+		    }
+		}
+	    } catch (IOException | RuntimeException e) {
+		LOGGER.error("gateway failed to serve connections", e);
+	    }
+	}
+
+	for (SelectionKey key : selector.keys()) {
+	    if (key.attachment() != null) {
+		((Session) key.attachment()).close();
+	    }
+	}
+	try {
+	    server.close();
+	    selector.close();
+	} catch (IOException e) {
+	    LOGGER.warn("failed to close gateway", e);
+	}
+	LOGGER.info("gateway stopped");
+    }
+
+    private void accept() throws IOException {
+	SocketChannel channel = server.accept();
+	if (channel == null) {
+	    return;
+	}
+	channel.configureBlocking(false);
+	channel.socket().setTcpNoDelay(true);
+	Session session = new Session(channel);
+	session.key = channel.register(selector, SelectionKey.OP_READ,
+		session);
+	LOGGER.debug("accepted connection from "
+		+ channel.getRemoteAddress());
+    }
+
+    /** @return the product id which was sent as the given key, or null */
+    private String productId(long key) {
+	int i = Arrays.binarySearch(productKeys, key);
+	return i < 0 ? null : productIds[i];
+    }
+
+    @Override
+    public void onEvent(EventType type, Object data) {
+	Session session = send(type, data);
+	if (session != null) {
+	    session.flush();
+	}
+    }
+
+    /**
+     * sends the fills and timeouts of the gateway's orders to their
+     * connections, writing to each connection once per batch.
+     */
+    @Override
+    public void onEvents(List<Event> events) {
+	List<Session> written = null;
+	for (Event event : events) {
+	    Session session = send(event.getType(), event.getData());
+	    if (session != null) {
+		if (written == null) {
+		    written = new ArrayList<>();
+		}
+		if (!written.contains(session)) {
+		    written.add(session);
+		}
+	    }
+	}
+	if (written != null) {
+	    for (Session session : written) {
+		session.flush();
+	    }
+	}
+    }
+
+    /**
+     * adds the message for the event to its connection's buffer, if the
+     * event concerns an order of the gateway.
+     *
+     * @return the connection, or null
+     */
+    private Session send(EventType type, Object data) {
+	switch (type) {
+	case SALE: {
+	    Sale sale = (Sale) data;
+	    return sendFill(sale.getSalesOrder().getId(), sale,
+		    sale.getSalesOrderRemaining());
+	}
+	case PURCHASE: {
+	    Sale sale = (Sale) data;
+	    return sendFill(sale.getPurchaseOrder().getId(), sale,
+		    sale.getPurchaseOrderRemaining());
+	}
+	// an order cancelled over http is over for the client just the same
+	case TIMEOUT_SALESORDER:
+	case CANCELLED_SALESORDER: {
+	    SalesOrder so = (SalesOrder) data;
+	    return sendTimeout(so.getId(), so.getRemainingQuantity());
+	}
+	case TIMEOUT_PURCHASEORDER:
+	case CANCELLED_PURCHASEORDER: {
+	    PurchaseOrder po = (PurchaseOrder) data;
+	    return sendTimeout(po.getId(), po.getRemainingQuantity());
+	}
+	default:
+	    return null;
+	}
+    }
+
+    /**
+     * @param remaining
+     *            what was left of the order right after the sale, from the
+     *            sale, since the order may have been filled further since
+     */
+    private Session sendFill(int orderId, Sale sale, int remaining) {
+	Session session = remaining > 0 ? orders.get(orderId) : orders
+		.remove(orderId);
+	if (session != null) {
+	    session.fill(orderId, sale.getQuantity(), sale.getPrice(),
+		    remaining, sale.getTime());
+	}
+	return session;
+    }
+
+    private Session sendTimeout(int orderId, int remaining) {
+	Session session = orders.remove(orderId);
+	if (session != null) {
+	    session.timeout(orderId, remaining);
+	}
+	return session;
+    }
+
+    /**
+     * a client connection. it is read by the selector thread only, while
+     * messages are written to it by the selector thread and the threads
+     * delivering engine events, under the session's lock.
+     */
+    private class Session {
+	private final SocketChannel channel;
+	private final ByteBuffer in = ByteBuffer
+		.allocateDirect(READ_BUFFER_SIZE);
+	// always ready to be written to, and flipped for the channel
+	private final ByteBuffer out = ByteBuffer
+		.allocateDirect(WRITE_BUFFER_SIZE);
+	private SelectionKey key;
+	private String user;
+	private volatile boolean closed;
+
+	Session(SocketChannel channel) {
+	    this.channel = channel;
+	}
+
+	/** reads and handles all complete messages, and answers them */
+	void read() {
+	    try {
+		if (channel.read(in) < 0) {
+		    close();
+		    return;
+		}
+	    } catch (IOException e) {
+		LOGGER.debug("failed to read from " + user, e);
+		close();
+		return;
+	    }
+
+	    in.flip();
+	    while (in.hasRemaining()) {
+		byte type = in.get(in.position());
+		int length = GatewayProtocol.length(type);
+		if (length < 0 || type > SELL) {
+		    LOGGER.warn("closing connection of " + user
+			    + " after unknown message type " + type);
+		    close();
+		    return;
+		}
+		if (in.remaining() < length) {
+		    break;
+		}
+		handle(type);
+	    }
+	    in.compact();
+	    flush();
+	}
+
+	private void handle(byte type) {
+	    in.get();
+	    if (type == LOGON) {
+		user = GatewayProtocol.getAscii(in, USER_LENGTH);
+		LOGGER.debug("logon of " + user);
+		synchronized (this) {
+		    if (room(GatewayProtocol.length(LOGON_ACK))) {
+			out.put(LOGON_ACK);
+		    }
+		}
+		return;
+	    }
+
+	    int clientRef = in.getInt();
+	    String productId = productId(in.getLong());
+	    int quantity = in.getInt();
+	    double price = type == SELL ? in.getDouble() : 0.0;
+	    if (user == null) {
+		reject(clientRef, NOT_LOGGED_ON);
+	    } else if (productId == null) {
+		reject(clientRef, UNKNOWN_PRODUCT);
+	    } else if (quantity <= 0) {
+		reject(clientRef, BAD_QUANTITY);
+	    } else if (type == SELL && !(price > 0.0)) {
+		reject(clientRef, BAD_PRICE);
+	    } else {
+		TradingEngine engine = engines.get(productId);
+		int id = ids.getAndIncrement();
+		orders.put(id, this);
+		// acked before the engine sees the order, so that the ack
+		// always comes before its fills
+		ack(clientRef, id);
+		if (type == BUY) {
+		    engine.addPurchaseOrder(user, productId, quantity, id);
+		} else {
+		    engine.addSalesOrder(user, productId, quantity, price, id);
+		}
+	    }
+	}
+
+	synchronized void ack(int clientRef, int orderId) {
+	    if (room(GatewayProtocol.length(ACK))) {
+		out.put(ACK).putInt(clientRef).putInt(orderId);
+	    }
+	}
+
+	synchronized void reject(int clientRef, byte reason) {
+	    if (room(GatewayProtocol.length(REJECT))) {
+		out.put(REJECT).putInt(clientRef).put(reason);
+	    }
+	}
+
+	synchronized void fill(int orderId, int quantity, double price,
+		int remaining, long timestamp) {
+	    if (room(GatewayProtocol.length(FILL))) {
+		out.put(FILL).putInt(orderId).putInt(quantity)
+			.putDouble(price).putInt(remaining)
+			.putLong(timestamp);
+	    }
+	}
+
+	synchronized void timeout(int orderId, int remaining) {
+	    if (room(GatewayProtocol.length(TIMEOUT))) {
+		out.put(TIMEOUT).putInt(orderId).putInt(remaining);
+	    }
+	}
+
+	/**
+	 * @return true if the message fits into the buffer. if it does not,
+	 *         the client is too slow, and is disconnected.
+	 */
+	private boolean room(int length) {
+	    if (closed) {
+		return false;
+	    }
+	    if (out.remaining() < length) {
+		LOGGER.warn("closing connection of " + user
+			+ ", which is not reading its messages");
+		close();
+		return false;
+	    }
+	    return true;
+	}
+
+	/**
+	 * writes as much of the buffer as the channel takes, and has the
+	 * selector write the rest once it can.
+	 */
+	synchronized void flush() {
+	    if (closed || out.position() == 0) {
+		return;
+	    }
+	    try {
+		out.flip();
+		channel.write(out);
+		out.compact();
+	    } catch (IOException e) {
+		LOGGER.debug("failed to write to " + user, e);
+		close();
+		return;
+	    }
+	    int ops = out.position() == 0 ? SelectionKey.OP_READ
+		    : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+	    if (key.interestOps() != ops) {
+		key.interestOps(ops);
+		selector.wakeup();
+	    }
+	}
+
+	synchronized void close() {
+	    closed = true;
+	    key.cancel();
+	    try {
+		channel.close();
+	    } catch (IOException e) {
+		LOGGER.debug("failed to close connection of " + user, e);
+	    }
+	}
+    }
+}
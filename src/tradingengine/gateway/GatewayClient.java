@@ -0,0 +1,140 @@
+package tradingengine.gateway;
+
+import static tradingengine.gateway.GatewayProtocol.ACK;
+import static tradingengine.gateway.GatewayProtocol.BUY;
+import static tradingengine.gateway.GatewayProtocol.FILL;
+import static tradingengine.gateway.GatewayProtocol.LOGON;
+import static tradingengine.gateway.GatewayProtocol.LOGON_ACK;
+import static tradingengine.gateway.GatewayProtocol.PRODUCT_LENGTH;
+import static tradingengine.gateway.GatewayProtocol.REJECT;
+import static tradingengine.gateway.GatewayProtocol.SELL;
+import static tradingengine.gateway.GatewayProtocol.TIMEOUT;
+import static tradingengine.gateway.GatewayProtocol.USER_LENGTH;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A blocking client of the {@link Gateway}, eg for trying it out on
+ * localhost, or for generating load. Orders are buffered until
+ * {@link #flush()}, so that many can be sent at once.
+ *
+ * Not thread safe - use one per thread, or read on one thread and send on
+ * another.
+ */
+public class GatewayClient implements Closeable {
+
+    /** gets the messages of the gateway, see {@link #read} */
+    public static interface Handler {
+	public void onAck(int clientRef, int orderId);
+
+	public void onReject(int clientRef, byte reason);
+
+	public void onFill(int orderId, int quantity, double price,
+		int remainingQuantity, long timestamp);
+
+	public void onTimeout(int orderId, int remainingQuantity);
+    }
+
+    private final SocketChannel channel;
+    private final ByteBuffer in = ByteBuffer.allocateDirect(64 * 1024);
+    private final ByteBuffer out = ByteBuffer.allocateDirect(64 * 1024);
+
+    /** connects and logs on as the given user */
+    public GatewayClient(InetSocketAddress address, String user)
+	    throws IOException {
+	channel = SocketChannel.open(address);
+	channel.socket().setTcpNoDelay(true);
+	in.limit(0);
+	out.put(LOGON);
+	GatewayProtocol.putAscii(out, user, USER_LENGTH);
+	flush();
+	if (fill(1).get() != LOGON_ACK) {
+	    throw new IOException("logon of " + user + " was not acked");
+	}
+    }
+
+    public void buy(int clientRef, String productId, int quantity)
+	    throws IOException {
+	room(GatewayProtocol.length(BUY));
+	out.put(BUY).putInt(clientRef);
+	GatewayProtocol.putAscii(out, productId, PRODUCT_LENGTH);
+	out.putInt(quantity);
+    }
+
+    public void sell(int clientRef, String productId, int quantity,
+	    double price) throws IOException {
+	room(GatewayProtocol.length(SELL));
+	out.put(SELL).putInt(clientRef);
+	GatewayProtocol.putAscii(out, productId, PRODUCT_LENGTH);
+	out.putInt(quantity).putDouble(price);
+    }
+
+    /** sends the orders which were buffered */
+    public void flush() throws IOException {
+	out.flip();
+	while (out.hasRemaining()) {
+	    channel.write(out);
+	}
+	out.clear();
+    }
+
+    /**
+     * waits for the next message of the gateway, and hands it to the
+     * handler.
+     */
+    public void read(Handler handler) throws IOException {
+	byte type = fill(1).get(in.position());
+	int length = GatewayProtocol.length(type);
+	if (length < 0) {
+	    throw new IOException("unknown message type " + type);
+	}
+	fill(length).get();
+	switch (type) {
+	case ACK:
+	    handler.onAck(in.getInt(), in.getInt());
+	    break;
+	case REJECT:
+	    handler.onReject(in.getInt(), in.get());
+	    break;
+	case FILL:
+	    handler.onFill(in.getInt(), in.getInt(), in.getDouble(), in
+		    .getInt(), in.getLong());
+	    break;
+	case TIMEOUT:
+	    handler.onTimeout(in.getInt(), in.getInt());
+	    break;
+	default:
+	    throw new IOException("unexpected message type " + type);
+	}
+    }
+
+    @Override
+    public void close() throws IOException {
+	channel.close();
+    }
+
+    private void room(int length) throws IOException {
+	if (out.remaining() < length) {
+	    flush();
+	}
+    }
+
+    /** @return the input buffer, once it holds at least length bytes */
+    private ByteBuffer fill(int length) throws IOException {
+	if (in.remaining() < length) {
+	    in.compact();
+	    while (in.position() < length) {
+		if (channel.read(in) < 0) {
+		    throw new EOFException("gateway closed the connection");
+		}
+	    }
+	    in.flip();
+	}
+	return in;
+    }
+}
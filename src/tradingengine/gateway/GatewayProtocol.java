@@ -0,0 +1,120 @@
+package tradingengine.gateway;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary protocol of the {@link Gateway}. Every message is a one byte
+ * type followed by fixed size fields in network byte order, so its length
+ * follows from its type. Ids are ASCII, padded with zero bytes.
+ *
+ * <pre>
+ * client to gateway:
+ * LOGON      user[16]
+ * BUY        clientRef:int productId[8] quantity:int
+ * SELL       clientRef:int productId[8] quantity:int price:double
+ *
+ * gateway to client:
+ * LOGON_ACK
+ * ACK        clientRef:int orderId:int
+ * REJECT     clientRef:int reason:byte
+ * FILL       orderId:int quantity:int price:double remaining:int time:long
+ * TIMEOUT    orderId:int remaining:int
+ * </pre>
+ *
+ * A client logs on once, and then sends orders with a reference of its own
+ * choosing, which the gateway answers with an ACK, carrying the id of the
+ * order, or a REJECT. The fills and timeouts of the order follow as the
+ * engine gets to them. An order which is cancelled over http gets a TIMEOUT
+ * too.
+ */
+public final class GatewayProtocol {
+
+    public static final byte LOGON = 1;
+    public static final byte BUY = 2;
+    public static final byte SELL = 3;
+
+    public static final byte LOGON_ACK = 10;
+    public static final byte ACK = 11;
+    public static final byte REJECT = 12;
+    public static final byte FILL = 13;
+    public static final byte TIMEOUT = 14;
+
+    // reasons for a REJECT
+    public static final byte NOT_LOGGED_ON = 1;
+    public static final byte UNKNOWN_PRODUCT = 2;
+    public static final byte BAD_QUANTITY = 3;
+    public static final byte BAD_PRICE = 4;
+
+    public static final int USER_LENGTH = 16;
+    public static final int PRODUCT_LENGTH = 8;
+
+    private GatewayProtocol() {
+    }
+
+    /** @return the length of a message of the given type, or -1 if unknown */
+    public static int length(byte type) {
+	switch (type) {
+	case LOGON:
+	    return 1 + USER_LENGTH;
+	case BUY:
+	    return 1 + 4 + PRODUCT_LENGTH + 4;
+	case SELL:
+	    return 1 + 4 + PRODUCT_LENGTH + 4 + 8;
+	case LOGON_ACK:
+	    return 1;
+	case ACK:
+	    return 1 + 4 + 4;
+	case REJECT:
+	    return 1 + 4 + 1;
+	case FILL:
+	    return 1 + 4 + 4 + 8 + 4 + 8;
+	case TIMEOUT:
+	    return 1 + 4 + 4;
+	default:
+	    return -1;
+	}
+    }
+
+    /**
+     * @return the product id as it is sent, which fits in a long
+     * @throws IllegalArgumentException
+     *             if the id is longer than {@link #PRODUCT_LENGTH}
+     */
+    public static long productKey(String productId) {
+	byte[] bytes = productId.getBytes(StandardCharsets.US_ASCII);
+	if (bytes.length > PRODUCT_LENGTH) {
+	    throw new IllegalArgumentException("product id '" + productId
+		    + "' is longer than " + PRODUCT_LENGTH + " bytes");
+	}
+	long key = 0;
+	for (int i = 0; i < PRODUCT_LENGTH; i++) {
+	    key = key << 8 | (i < bytes.length ? bytes[i] & 0xff : 0);
+	}
+	return key;
+    }
+
+    /** writes the string as ASCII, padded with zeros to the given length */
+    public static void putAscii(ByteBuffer buffer, String s, int length) {
+	byte[] bytes = s.getBytes(StandardCharsets.US_ASCII);
+	if (bytes.length > length) {
+	    throw new IllegalArgumentException("'" + s + "' is longer than "
+		    + length + " bytes");
+	}
+	buffer.put(bytes);
+	for (int i = bytes.length; i < length; i++) {
+	    buffer.put((byte) 0);
+	}
+    }
+
+    /** @return the ASCII string of the given length, without its padding */
+    public static String getAscii(ByteBuffer buffer, int length) {
+	byte[] bytes = new byte[length];
+	buffer.get(bytes);
+	int end = 0;
+	while (end < length && bytes[end] != 0) {
+	    end++;
+	}
+	return new String(bytes, 0, end, StandardCharsets.US_ASCII);
+    }
+}
@@ -38,16 +38,34 @@ public class Buyer {
      */
     public List<PurchaseOrder> getRelevantPurchaseOrders(String productId,
 	    double price) {
-	return this.purchaseOrders
-		.stream()
-		.filter(po -> {
-		    return po.getProductId().equals(productId)
-			    && po.getMaximumAcceptedPrice() >= price;
-		}).collect(Collectors.toList());
+	List<PurchaseOrder> relevant = new ArrayList<>();
+	collectRelevantPurchaseOrders(productId, price, relevant);
+	return relevant;
+    }
+
+    /**
+     * as {@link #getRelevantPurchaseOrders}, but adds them to the given list,
+     * so that the market can reuse it from one sale to the next.
+     */
+    public void collectRelevantPurchaseOrders(String productId, double price,
+	    List<PurchaseOrder> into) {
+	for (int i = 0; i < purchaseOrders.size(); i++) {
+	    PurchaseOrder po = purchaseOrders.get(i);
+	    if (po.getProductId().equals(productId)
+		    && po.getMaximumAcceptedPrice() >= price) {
+		into.add(po);
+	    }
+	}
     }
 
+    /** removes exactly this purchase order, not just an equal one */
     public void removePurchaseOrder(PurchaseOrder purchaseOrder) {
-	this.purchaseOrders.remove(purchaseOrder);
+	for (int i = 0; i < purchaseOrders.size(); i++) {
+	    if (purchaseOrders.get(i) == purchaseOrder) {
+		purchaseOrders.remove(i);
+		return;
+	    }
+	}
     }
 
     public List<PurchaseOrder> removeOutdatedPurchaseOrders(long ageInMs) {
@@ -0,0 +1,137 @@
+package tradingengine.model;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * What an engine did so far: how long each phase of its trading sessions
+ * took, how many orders it took in and how many sales it made, and how many
+ * orders are resting in its market, eg for /metrics.
+ *
+ * Only the engine's thread writes, so it never takes a lock: it writes with
+ * lazySet, which other threads see soon enough, in order. Readers may see a
+ * session half recorded, eg a histogram's count before its sum, which does
+ * not matter for monitoring.
+ */
+public class EngineMetrics {
+
+    /** the phases of a trading session, see {@link TradingEngine#run} */
+    public static enum Phase {
+	/** removing orders which timed out */
+	EXPIRE,
+	/** taking in new orders, and tasks of other threads */
+	INGEST,
+	/** matching, see {@link Market#trade} */
+	TRADE,
+	/** journaling, and noting prices and volumes */
+	RECORD,
+	/** handing the sales to the {@link SaleWriter} */
+	PERSIST,
+	/** raising the events, and delivering them unless that is async */
+	NOTIFY,
+	/**
+	 * taking the view of the market for a {@link Snapshot}, part of RECORD
+	 * in the sessions which take one
+	 */
+	SNAPSHOT,
+	/** the whole session, without waiting for the next one */
+	SESSION
+    }
+
+    /**
+     * the number of histogram buckets. bucket i holds the times up to 2^i
+     * micros, ie from 1 micro to about 4 secs, and one more bucket holds the
+     * longer ones.
+     */
+    public static final int BUCKETS = 23;
+
+    private final Histogram[] phases = new Histogram[Phase.values().length];
+    private final AtomicLong ordersIngested = new AtomicLong();
+    private final AtomicLong sales = new AtomicLong();
+    private volatile int restingSalesOrders;
+    private volatile int restingPurchaseOrders;
+
+    public EngineMetrics() {
+	for (int i = 0; i < phases.length; i++) {
+	    phases[i] = new Histogram();
+	}
+    }
+
+    void record(Phase phase, long nanos) {
+	phases[phase.ordinal()].record(nanos);
+    }
+
+    void ordersIngested(int count) {
+	ordersIngested.lazySet(ordersIngested.get() + count);
+    }
+
+    void sales(int count) {
+	sales.lazySet(sales.get() + count);
+    }
+
+    void resting(int salesOrders, int purchaseOrders) {
+	this.restingSalesOrders = salesOrders;
+	this.restingPurchaseOrders = purchaseOrders;
+    }
+
+    public Histogram getHistogram(Phase phase) {
+	return phases[phase.ordinal()];
+    }
+
+    /** @return the number of orders accepted into the market */
+    public long getOrdersIngested() {
+	return ordersIngested.get();
+    }
+
+    /** @return the number of sales made */
+    public long getSales() {
+	return sales.get();
+    }
+
+    /** @return the sales orders resting after the last session */
+    public int getRestingSalesOrders() {
+	return restingSalesOrders;
+    }
+
+    /** @return the purchase orders resting after the last session */
+    public int getRestingPurchaseOrders() {
+	return restingPurchaseOrders;
+    }
+
+    /** @return the upper bound of the given bucket, in nanos */
+    public static long getUpperBound(int bucket) {
+	return bucket < BUCKETS ? 1000L << bucket : Long.MAX_VALUE;
+    }
+
+    /** how often a phase took how long, in buckets of powers of two */
+    public static class Histogram {
+	private final AtomicLongArray counts = new AtomicLongArray(
+		BUCKETS + 1);
+	private final AtomicLong sum = new AtomicLong();
+
+	void record(long nanos) {
+	    int bucket = bucket(nanos);
+	    counts.lazySet(bucket, counts.get(bucket) + 1);
+	    sum.lazySet(sum.get() + nanos);
+	}
+
+	/** @return how often the phase took longer than the previous bucket */
+	public long getCount(int bucket) {
+	    return counts.get(bucket);
+	}
+
+	/** @return the time the phase took in all, in nanos */
+	public long getSum() {
+	    return sum.get();
+	}
+
+	static int bucket(long nanos) {
+	    long micros = (nanos + 999) / 1000;
+	    if (micros <= 1) {
+		return 0;
+	    }
+	    return Math.min(BUCKETS, 64 - Long.numberOfLeadingZeros(
+		    micros - 1));
+	}
+    }
+}
@@ -0,0 +1,91 @@
+package tradingengine.model;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import tradingengine.model.TradingEngine.Event;
+import tradingengine.model.TradingEngine.Listener;
+
+/**
+ * Delivers the events of an engine to its listener on a thread of its own, so
+ * that the engine can get on with the next trading session while the listener
+ * is still busy, eg building results. Each trading session's events are
+ * handed over as one batch, and delivered with {@link Listener#onEvents}.
+ *
+ * If the listener falls behind by more than the given number of batches, the
+ * engine waits for it, rather than events being lost.
+ *
+ * Note that the data of an event is not copied: the {@link Sale}s and orders
+ * are the engine's own, which it may have changed since the event was raised,
+ * eg by filling an order further. So a listener must take what was left of an
+ * order from the event, ie {@link Sale#getSalesOrderRemaining},
+ * {@link Sale#getPurchaseOrderRemaining} or the applied {@link OrderChange},
+ * rather than from the order itself. See {@link TradingEngine.EventType}.
+ */
+public class EventDispatcher {
+
+    private static final Logger LOGGER = LogManager
+	    .getLogger("eventDispatcher");
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final Listener listener;
+    private final BlockingQueue<List<Event>> queue;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public EventDispatcher(String name, Listener listener, int capacity) {
+	this.listener = listener;
+	this.queue = new ArrayBlockingQueue<>(capacity);
+	this.thread = new Thread(this::run, name);
+	this.thread.setDaemon(true);
+    }
+
+    public void start() {
+	thread.start();
+    }
+
+    /** queues the batch of events. only blocks if the queue is full. */
+    public void dispatch(List<Event> events) throws InterruptedException {
+	if (!queue.offer(events)) {
+	    LOGGER.warn("event queue is full - waiting for the listener");
+	    queue.put(events);
+	}
+    }
+
+    /**
+     * delivers whatever is still queued and stops the thread, waiting at most
+     * the given time for that.
+     */
+    public void close(long timeoutMs) throws InterruptedException {
+	running = false;
+	thread.join(timeoutMs);
+    }
+
+    /** @return the number of batches waiting to be delivered */
+    public int getQueueDepth() {
+	return queue.size();
+    }
+
+    private void run() {
+	while (running || !queue.isEmpty()) {
+	    try {
+		List<Event> events = queue.poll(100, TimeUnit.MILLISECONDS);
+		if (events != null) {
+		    listener.onEvents(events);
+		}
+	    } catch (InterruptedException e) {
+		LOGGER.warn("event dispatcher interrupted, stopping", e);
+		Thread.currentThread().interrupt();
+		running = false;
+	    } catch (RuntimeException e) {
+		LOGGER.error("listener failed to handle events", e);
+	    }
+	}
+    }
+}
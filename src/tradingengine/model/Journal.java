@@ -0,0 +1,335 @@
+package tradingengine.model;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * An append-only log of everything which changes the resting orders of a
+ * {@link Market}: accepted orders, fills, amendments, cancels and expiries.
+ * The engine appends to it while trading and calls {@link #commit()} once per
+ * trading session, so all records of a session are flushed to disk together
+ * (group commit). On startup, {@link #replay} hands the records back, so the
+ * market can be rebuilt. It must be called before anything is appended, as
+ * it also finds the end of the log.
+ *
+ * The file is written through a memory mapped region of
+ * {@link #REGION_SIZE} bytes, which is moved along as the log grows. Each
+ * record is laid out as:
+ *
+ * <pre>
+ * int length | int crc32 | byte type | payload
+ * </pre>
+ *
+ * where length counts the type and payload. The length is written last, and
+ * the rest of the file is zero, so replay stops at the first record with no
+ * length or a bad checksum, ie at the end of the log or at a record which was
+ * torn by a crash.
+ *
+ * Not thread safe - it belongs to the engine thread.
+ */
+public class Journal implements Closeable {
+
+    private static final Logger LOGGER = LogManager.getLogger("journal");
+
+    static final long REGION_SIZE = 64L * 1024 * 1024;
+    private static final int HEADER = 8;
+    private static final int MAX_RECORD = 64 * 1024;
+
+    private static final byte SALES_ORDER = 1;
+    private static final byte PURCHASE_ORDER = 2;
+    private static final byte FILL = 3;
+    private static final byte SALES_ORDER_EXPIRED = 4;
+    private static final byte PURCHASE_ORDER_EXPIRED = 5;
+    private static final byte SALES_ORDER_REDUCED = 6;
+    private static final byte PURCHASE_ORDER_REDUCED = 7;
+
+    /** receives the records of the journal, in the order they were written */
+    public static interface Handler {
+	void onSalesOrder(String seller, String productId, double price,
+		int quantity, int id, long created);
+
+	void onPurchaseOrder(String buyer, String productId,
+		double maximumAcceptedPrice, int quantity, int id, long created);
+
+	void onFill(int purchaseOrderId, int salesOrderId, int quantity,
+		double price, long timestamp);
+
+	void onSalesOrderExpired(int id);
+
+	void onPurchaseOrderExpired(int id);
+
+	void onSalesOrderReduced(int id, int quantity);
+
+	void onPurchaseOrderReduced(int id, int quantity);
+    }
+
+    private final Path file;
+    private final FileChannel channel;
+    private final CRC32 crc = new CRC32();
+
+    private MappedByteBuffer region;
+    private long regionStart;
+
+    /** where the next record goes, relative to the region */
+    private int position;
+    /** where the records not yet flushed start, relative to the region */
+    private int committed;
+
+    public Journal(Path file) throws IOException {
+	this.file = file;
+	this.channel = FileChannel.open(file, StandardOpenOption.CREATE,
+		StandardOpenOption.READ, StandardOpenOption.WRITE);
+	// the end of the log is only found by replay, which can start from a
+	// snapshot's position, so that the records before it are not read
+    }
+
+    public Path getFile() {
+	return file;
+    }
+
+    /** @return the position in the file, after the last record */
+    public long getPosition() {
+	return regionStart + position;
+    }
+
+    /**
+     * hands every intact record from the given file position onwards to the
+     * handler, after which new records are appended behind the last one. the
+     * position must be the start of a record, eg one from
+     * {@link #getPosition()}, or 0.
+     *
+     * @return the number of records replayed
+     */
+    public int replay(long from, Handler handler) throws IOException {
+	int records = scan(from, handler);
+	LOGGER.info("replayed " + records + " records from journal " + file);
+	return records;
+    }
+
+    private int scan(long from, Handler handler) throws IOException {
+	int records = 0;
+	map(from);
+	while (true) {
+	    if (position + HEADER > region.capacity()) {
+		map(getPosition());
+	    }
+	    int length = region.getInt(position);
+	    if (length <= 0 || length > MAX_RECORD) {
+		break;
+	    }
+	    if (position + HEADER + length > region.capacity()) {
+		map(getPosition());
+	    }
+	    int start = position + HEADER;
+	    if (checksum(start, length) != region.getInt(position + 4)) {
+		LOGGER.warn("journal " + file + " has a torn record at "
+			+ getPosition() + ", ignoring everything after it");
+		break;
+	    }
+	    if (handler != null) {
+		ByteBuffer record = region.duplicate();
+		record.position(start).limit(start + length);
+		dispatch(record, handler);
+	    }
+	    position = start + length;
+	    records++;
+	}
+	// anything after the last intact record is garbage, so overwrite it
+	region.putInt(position, 0);
+	committed = position;
+	return records;
+    }
+
+    public void salesOrderAccepted(SalesOrder so) {
+	byte[] seller = bytes(so.getSeller().getName());
+	byte[] productId = bytes(so.getProductId());
+	ByteBuffer b = begin(SALES_ORDER, 2 + seller.length + 2
+		+ productId.length + 8 + 4 + 4 + 8);
+	putString(b, seller);
+	putString(b, productId);
+	b.putDouble(so.getPrice());
+	b.putInt(so.getOriginalQuantity());
+	b.putInt(so.getId());
+	b.putLong(so.getCreated().getTime());
+	end(b);
+    }
+
+    public void purchaseOrderAccepted(PurchaseOrder po) {
+	byte[] buyer = bytes(po.getBuyer().getName());
+	byte[] productId = bytes(po.getProductId());
+	ByteBuffer b = begin(PURCHASE_ORDER, 2 + buyer.length + 2
+		+ productId.length + 8 + 4 + 4 + 8);
+	putString(b, buyer);
+	putString(b, productId);
+	b.putDouble(po.getMaximumAcceptedPrice());
+	b.putInt(po.getOriginalQuantity());
+	b.putInt(po.getId());
+	b.putLong(po.getCreated().getTime());
+	end(b);
+    }
+
+    public void filled(Sale sale) {
+	ByteBuffer b = begin(FILL, 4 + 4 + 4 + 8 + 8);
+	b.putInt(sale.getPurchaseOrder().getId());
+	b.putInt(sale.getSalesOrder().getId());
+	b.putInt(sale.getQuantity());
+	b.putDouble(sale.getPrice());
+	b.putLong(sale.getTime());
+	end(b);
+    }
+
+    /** also records that the order was cancelled, or replaced by an amend */
+    public void salesOrderExpired(SalesOrder so) {
+	ByteBuffer b = begin(SALES_ORDER_EXPIRED, 4);
+	b.putInt(so.getId());
+	end(b);
+    }
+
+    /** also records that the order was cancelled, or replaced by an amend */
+    public void purchaseOrderExpired(PurchaseOrder po) {
+	ByteBuffer b = begin(PURCHASE_ORDER_EXPIRED, 4);
+	b.putInt(po.getId());
+	end(b);
+    }
+
+    /** records that the order was amended to the given smaller quantity */
+    public void salesOrderReduced(SalesOrder so, int quantity) {
+	ByteBuffer b = begin(SALES_ORDER_REDUCED, 4 + 4);
+	b.putInt(so.getId());
+	b.putInt(quantity);
+	end(b);
+    }
+
+    /** records that the order was amended to the given smaller quantity */
+    public void purchaseOrderReduced(PurchaseOrder po, int quantity) {
+	ByteBuffer b = begin(PURCHASE_ORDER_REDUCED, 4 + 4);
+	b.putInt(po.getId());
+	b.putInt(quantity);
+	end(b);
+    }
+
+    /**
+     * flushes everything appended since the last commit to disk, with a single
+     * sync.
+     */
+    public void commit() {
+	if (region != null && position > committed) {
+	    region.force(committed, position - committed);
+	    committed = position;
+	}
+    }
+
+    @Override
+    public void close() throws IOException {
+	commit();
+	channel.close();
+    }
+
+    /**
+     * @return a view of the region for the payload of a new record of the
+     *         given type, moving the region along if the record does not fit
+     */
+    private ByteBuffer begin(byte type, int payloadLength) {
+	if (region == null) {
+	    throw new IllegalStateException("journal " + file
+		    + " must be replayed before appending to it");
+	}
+	int length = 1 + payloadLength;
+	if (position + HEADER + length + 4 > region.capacity()) {
+	    commit();
+	    try {
+		map(getPosition());
+	    } catch (IOException e) {
+		throw new IllegalStateException("failed to grow journal "
+			+ file, e);
+	    }
+	}
+	ByteBuffer b = region.duplicate();
+	b.position(position + HEADER);
+	b.put(type);
+	return b;
+    }
+
+    /** completes the record, by writing its checksum and length */
+    private void end(ByteBuffer b) {
+	int start = position + HEADER;
+	int length = b.position() - start;
+	region.putInt(start + length, 0); // marks the new end of the log
+	region.putInt(position + 4, checksum(start, length));
+	region.putInt(position, length);
+	position = start + length;
+    }
+
+    private void dispatch(ByteBuffer b, Handler handler) {
+	byte type = b.get();
+	switch (type) {
+	case SALES_ORDER:
+	    handler.onSalesOrder(getString(b), getString(b), b.getDouble(),
+		    b.getInt(), b.getInt(), b.getLong());
+	    break;
+	case PURCHASE_ORDER:
+	    handler.onPurchaseOrder(getString(b), getString(b), b.getDouble(),
+		    b.getInt(), b.getInt(), b.getLong());
+	    break;
+	case FILL:
+	    handler.onFill(b.getInt(), b.getInt(), b.getInt(), b.getDouble(),
+		    b.getLong());
+	    break;
+	case SALES_ORDER_EXPIRED:
+	    handler.onSalesOrderExpired(b.getInt());
+	    break;
+	case PURCHASE_ORDER_EXPIRED:
+	    handler.onPurchaseOrderExpired(b.getInt());
+	    break;
+	case SALES_ORDER_REDUCED:
+	    handler.onSalesOrderReduced(b.getInt(), b.getInt());
+	    break;
+	case PURCHASE_ORDER_REDUCED:
+	    handler.onPurchaseOrderReduced(b.getInt(), b.getInt());
+	    break;
+	default:
+	    LOGGER.warn("skipping unknown record type " + type + " in journal "
+		    + file);
+	}
+    }
+
+    private int checksum(int start, int length) {
+	ByteBuffer b = region.duplicate();
+	b.position(start).limit(start + length);
+	crc.reset();
+	crc.update(b);
+	return (int) crc.getValue();
+    }
+
+    private void map(long at) throws IOException {
+	regionStart = at;
+	region = channel.map(FileChannel.MapMode.READ_WRITE, at, REGION_SIZE);
+	position = 0;
+	committed = 0;
+    }
+
+    private static byte[] bytes(String s) {
+	return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void putString(ByteBuffer b, byte[] s) {
+	b.putShort((short) s.length);
+	b.put(s);
+    }
+
+    private static String getString(ByteBuffer b) {
+	byte[] s = new byte[b.getShort()];
+	b.get(s);
+	return new String(s, StandardCharsets.UTF_8);
+    }
+}
@@ -1,17 +1,25 @@
 package tradingengine.model;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
-import org.apache.commons.lang3.mutable.MutableBoolean;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import tradingengine.model.OrderBook.PriceLevel;
+
 /**
  * A market contains 0..n sellers. A seller has 0..i sales orders each of which
  * contains a quantity of a product at a certain price. The seller is prepared
@@ -27,15 +35,263 @@ public class Market {
 
     private List<Seller> sellers = new ArrayList<>();
     private List<Buyer> buyers = new ArrayList<>();
+    private Map<String, Seller> sellersByName = new HashMap<>();
+    private Map<String, Buyer> buyersByName = new HashMap<>();
+    private Map<String, OrderBook> orderBooks = new HashMap<>();
+    // the same books, to trade them without allocating an iterator
+    private List<OrderBook> books = new ArrayList<>();
+    // the resting orders by id, to cancel or amend them
+    private Map<Integer, SalesOrder> salesOrdersById = new HashMap<>();
+    private Map<Integer, PurchaseOrder> purchaseOrdersById = new HashMap<>();
+
+    /**
+     * when resting orders time out. each order's entry is cancelled as soon
+     * as it leaves the market some other way.
+     */
+    private final long orderTimeout;
+    private final TimingWheel<SalesOrder> salesOrderExpiries;
+    private final TimingWheel<PurchaseOrder> purchaseOrderExpiries;
+    private final Map<SalesOrder, TimingWheel.Timeout<SalesOrder>> salesOrderTimeouts = new IdentityHashMap<>();
+    private final Map<PurchaseOrder, TimingWheel.Timeout<PurchaseOrder>> purchaseOrderTimeouts = new IdentityHashMap<>();
 
-    private MarketInfo marketInfo;
+    private MatchingMode matchingMode = MatchingMode.CHEAPEST_SELLER;
+
+    // trades the products in parallel if set, see trade()
+    private ForkJoinPool tradingPool;
+
+    // reused by every sitting which trades the products in succession
+    private final Scratch scratch = new Scratch();
+
+    /** how buyers and sellers are matched at a trade sitting */
+    public static enum MatchingMode {
+	/**
+	 * each buyer takes from the single cheapest seller, see
+	 * {@link Market#trade()}
+	 */
+	CHEAPEST_SELLER,
+	/**
+	 * each purchase order, in price/time priority, walks up the ask price
+	 * levels until it is filled or the next ask exceeds its maximum
+	 * accepted price
+	 */
+	SWEEP
+    }
+
+    /** a market whose orders never time out */
+    public Market() {
+	this(0);
+    }
+
+    /**
+     * @param orderTimeout
+     *            the number of milliseconds after which incomplete sales or
+     *            purchase orders are removed from the market, see
+     *            {@link #expireSalesOrders} and
+     *            {@link #expirePurchaseOrders}. zero means never.
+     */
+    public Market(long orderTimeout) {
+	long now = System.currentTimeMillis();
+	this.orderTimeout = orderTimeout;
+	this.salesOrderExpiries = new TimingWheel<>(now);
+	this.purchaseOrderExpiries = new TimingWheel<>(now);
+    }
 
     public void addSeller(Seller seller) {
 	this.sellers.add(seller);
+	this.sellersByName.put(seller.getName(), seller);
     }
 
     public void addBuyer(Buyer buyer) {
 	this.buyers.add(buyer);
+	this.buyersByName.put(buyer.getName(), buyer);
+    }
+
+    /** @return the seller with the given name, or null if not in the market */
+    public Seller getSeller(String name) {
+	return sellersByName.get(name);
+    }
+
+    /** @return the buyer with the given name, or null if not in the market */
+    public Buyer getBuyer(String name) {
+	return buyersByName.get(name);
+    }
+
+    /** hands the sales order to the seller and puts it on the order book */
+    public void addSalesOrder(Seller seller, SalesOrder salesOrder) {
+	seller.addSalesOrder(salesOrder);
+	getOrCreateOrderBook(salesOrder.getProductId()).addSalesOrder(
+		salesOrder);
+	salesOrdersById.put(salesOrder.getId(), salesOrder);
+	if (orderTimeout > 0) {
+	    salesOrderTimeouts.put(salesOrder, salesOrderExpiries.schedule(
+		    salesOrder, salesOrder.getCreated().getTime()
+			    + orderTimeout));
+	}
+    }
+
+    /** hands the purchase order to the buyer and puts it on the order book */
+    public void addPurchaseOrder(Buyer buyer, PurchaseOrder purchaseOrder) {
+	buyer.addPurchaseOrder(purchaseOrder);
+	getOrCreateOrderBook(purchaseOrder.getProductId()).addPurchaseOrder(
+		purchaseOrder);
+	purchaseOrdersById.put(purchaseOrder.getId(), purchaseOrder);
+	if (orderTimeout > 0) {
+	    purchaseOrderTimeouts.put(purchaseOrder, purchaseOrderExpiries
+		    .schedule(purchaseOrder, purchaseOrder.getCreated()
+			    .getTime() + orderTimeout));
+	}
+    }
+
+    /** takes the sales order away from its seller and off the order book */
+    public void removeSalesOrder(SalesOrder salesOrder) {
+	TimingWheel.Timeout<SalesOrder> timeout = salesOrderTimeouts
+		.remove(salesOrder);
+	if (timeout != null) {
+	    timeout.cancel();
+	}
+	takeSalesOrder(salesOrder);
+    }
+
+    /** takes the purchase order away from its buyer and off the order book */
+    public void removePurchaseOrder(PurchaseOrder purchaseOrder) {
+	TimingWheel.Timeout<PurchaseOrder> timeout = purchaseOrderTimeouts
+		.remove(purchaseOrder);
+	if (timeout != null) {
+	    timeout.cancel();
+	}
+	takePurchaseOrder(purchaseOrder);
+    }
+
+    /** @return the resting sales order with the given id, or null */
+    public SalesOrder getSalesOrder(int id) {
+	return salesOrdersById.get(id);
+    }
+
+    /** @return the resting purchase order with the given id, or null */
+    public PurchaseOrder getPurchaseOrder(int id) {
+	return purchaseOrdersById.get(id);
+    }
+
+    /**
+     * changes the remaining quantity and price of a resting sales order. if
+     * the order only gets smaller, it keeps its place in the book. otherwise
+     * it is replaced by an order with the same id and creation time, which
+     * queues up behind the orders already at its price.
+     * 
+     * @return the order which is now in the market
+     */
+    public SalesOrder amendSalesOrder(SalesOrder salesOrder, int quantity,
+	    double price) {
+	int remaining = salesOrder.getRemainingQuantity();
+	if (price == salesOrder.getPrice() && quantity <= remaining) {
+	    reduceSalesOrder(salesOrder, remaining - quantity);
+	    return salesOrder;
+	}
+	removeSalesOrder(salesOrder);
+	SalesOrder amended = new SalesOrder(price, salesOrder.getProductId(),
+		quantity, salesOrder.getId(), salesOrder.getCreated());
+	addSalesOrder(salesOrder.getSeller(), amended);
+	return amended;
+    }
+
+    /**
+     * changes the remaining quantity and maximum accepted price of a resting
+     * purchase order, like {@link #amendSalesOrder}.
+     * 
+     * @return the order which is now in the market
+     */
+    public PurchaseOrder amendPurchaseOrder(PurchaseOrder purchaseOrder,
+	    int quantity, double maximumAcceptedPrice) {
+	int remaining = purchaseOrder.getRemainingQuantity();
+	if (maximumAcceptedPrice == purchaseOrder.getMaximumAcceptedPrice()
+		&& quantity <= remaining) {
+	    reducePurchaseOrder(purchaseOrder, remaining - quantity);
+	    return purchaseOrder;
+	}
+	removePurchaseOrder(purchaseOrder);
+	PurchaseOrder amended = new PurchaseOrder(purchaseOrder.getProductId(),
+		quantity, maximumAcceptedPrice, purchaseOrder.getId(),
+		purchaseOrder.getCreated());
+	addPurchaseOrder(purchaseOrder.getBuyer(), amended);
+	return amended;
+    }
+
+    /**
+     * takes the given quantity off a resting sales order, which stays in the
+     * market even if nothing remains of it.
+     */
+    void reduceSalesOrder(SalesOrder salesOrder, int quantity) {
+	salesOrder.reduceRemainingQuantity(quantity);
+	orderBooks.get(salesOrder.getProductId()).salesOrderReduced(quantity);
+    }
+
+    /** as {@link #reduceSalesOrder}, for a resting purchase order */
+    void reducePurchaseOrder(PurchaseOrder purchaseOrder, int quantity) {
+	purchaseOrder.reduceRemainingQuantity(quantity);
+	orderBooks.get(purchaseOrder.getProductId()).purchaseOrderReduced(
+		quantity);
+    }
+
+    /**
+     * removes the sales orders which were created more than the order timeout
+     * before the given time. only the orders which are actually due are
+     * touched.
+     * 
+     * @return the out of date ones, which are no longer in the market
+     */
+    public List<SalesOrder> expireSalesOrders(long now) {
+	List<SalesOrder> outdated = new ArrayList<>();
+	salesOrderExpiries.advance(now, so -> {
+	    salesOrderTimeouts.remove(so);
+	    takeSalesOrder(so);
+	    outdated.add(so);
+	});
+	return outdated;
+    }
+
+    /**
+     * removes the purchase orders which were created more than the order
+     * timeout before the given time. only the orders which are actually due
+     * are touched.
+     * 
+     * @return the out of date ones, which are no longer in the market
+     */
+    public List<PurchaseOrder> expirePurchaseOrders(long now) {
+	List<PurchaseOrder> outdated = new ArrayList<>();
+	purchaseOrderExpiries.advance(now, po -> {
+	    purchaseOrderTimeouts.remove(po);
+	    takePurchaseOrder(po);
+	    outdated.add(po);
+	});
+	return outdated;
+    }
+
+    /**
+     * @return the earliest time at which {@link #expireSalesOrders} or
+     *         {@link #expirePurchaseOrders} may have something to do, or
+     *         Long.MAX_VALUE if no orders expire
+     */
+    public long getNextExpiry() {
+	return Math.min(salesOrderExpiries.nextDeadline(),
+		purchaseOrderExpiries.nextDeadline());
+    }
+
+    private void takeSalesOrder(SalesOrder salesOrder) {
+	salesOrder.getSeller().removeSalesOrder(salesOrder);
+	forgetSalesOrder(salesOrder);
+	OrderBook book = orderBooks.get(salesOrder.getProductId());
+	if (book != null) {
+	    book.removeSalesOrder(salesOrder);
+	}
+    }
+
+    private void takePurchaseOrder(PurchaseOrder purchaseOrder) {
+	purchaseOrder.getBuyer().removePurchaseOrder(purchaseOrder);
+	forgetPurchaseOrder(purchaseOrder);
+	OrderBook book = orderBooks.get(purchaseOrder.getProductId());
+	if (book != null) {
+	    book.removePurchaseOrder(purchaseOrder);
+	}
     }
 
     /**
@@ -50,97 +306,189 @@ public class Market {
      * wait until the next trading session to find the next most suitable
      * seller.
      *
+     * The cheapest seller is the one at the head of the product's
+     * {@link OrderBook}, and buyers take their turn in the price/time priority
+     * of their purchase orders.
+     *
+     * In {@link MatchingMode#SWEEP} mode, a buyer does not have to wait: see
+     * {@link #sweep}.
+     *
+     * If a trading pool is set, the products are traded in parallel instead,
+     * see {@link #setTradingPool}.
+     *
      * @return {Array} array of {@link Sale}s in this trade
      */
     public List<Sale> trade() {
 	List<Sale> sales = new ArrayList<>();
+	trade(sales);
+	return sales;
+    }
 
-	Set<String> productsInMarket = getProductsInMarket();
-
-	this.collectMarketInfo();
+    /**
+     * as {@link #trade()}, but adds the sales to the given list, so that the
+     * engine can reuse it from one sitting to the next. apart from the sales
+     * themselves, a sitting which trades the products in succession only
+     * reuses the scratch lists of the market.
+     */
+    public void trade(List<Sale> sales) {
+	if (tradingPool != null && books.size() > 1) {
+	    tradeInParallel(sales);
+	    return;
+	}
 
 	// trade each product in succession
-	productsInMarket
-		.stream()
-		.forEach(
-			productId -> {
-
-			    MutableBoolean soldOutOfProduct = new MutableBoolean(
-				    false);
-			    LOGGER.logDebug("trading product " + productId);
-			    List<Buyer> buyersInterestedInProduct = getBuyersInterestedInProduct(productId);
-			    if (buyersInterestedInProduct.size() == 0) {
-				LOGGER.logInfo("no buyers interested in product "
-					+ productId);
-			    } else {
-				buyersInterestedInProduct.forEach(buyer -> {
-				    if (soldOutOfProduct.isFalse()) {
-					LOGGER.logDebug("  buyer "
-						+ buyer.getName()
-						+ " is searching for product "
-						+ productId);
-					// select the cheapest seller
-					Optional<Seller> cheapestSeller = sellers
-						.stream()
-						.filter(seller -> {
-						    return seller
-							    .hasProduct(productId);
-						})
-						.sorted((s1, s2) -> Double
-							.compare(
-								s1.getCheapestSalesOrder(
-									productId)
-									.getPrice(),
-								s2.getCheapestSalesOrder(
-									productId)
-									.getPrice()))
-						.findFirst();
-					if (cheapestSeller.isPresent()) {
-					    LOGGER.logDebug("    cheapest seller is "
-						    + cheapestSeller.get()
-							    .getName());
-					    List<Sale> newSales = createSale(
-						    buyer,
-						    cheapestSeller.get(),
-						    productId);
-					    sales.addAll(newSales);
-					    LOGGER.logDebug("    sales completed");
-					} else {
-					    LOGGER.warn("    market sold out of product "
-						    + productId);
-					    soldOutOfProduct.setTrue();
-					}
-				    }
-				});
-			    }
-			});
-
-	return sales;
+	for (int i = 0; i < books.size(); i++) {
+	    OrderBook book = books.get(i);
+	    if (book.hasSalesOrders()) {
+		tradeProduct(book, sales, null);
+	    }
+	}
     };
 
-    public void collectMarketInfo() {
-	this.marketInfo = new MarketInfo();
-
-	this.marketInfo.pos = buyers.stream().map(buyer -> {
-	    return buyer.getPurchaseOrders();
-	}).flatMap(l -> l.stream()).collect(Collectors.groupingBy(po -> {
-	    return po.getProductId();
-	}));
-
-	this.marketInfo.sos = sellers.stream().map(seller -> {
-	    return seller.getSalesOrders();
-	}).flatMap(l -> l.stream()).collect(Collectors.groupingBy(so -> {
-	    return so.getProductId();
-	}));
-
-	/*
-	 * for(String productId : this.marketInfo.pos.keySet()){
-	 * this.marketInfo.pos.put(productId) =
-	 * this.marketInfo.pos[productId].length; } for(var productId :
-	 * this.marketInfo.sos){ this.marketInfo.sos[productId] =
-	 * this.marketInfo.sos[productId].length; }
-	 */
-    };
+    /**
+     * trades each product in a task of its own. products never share orders,
+     * so the tasks only share the sellers and buyers, and the timeouts:
+     * those are not touched while the tasks run. each task takes the orders
+     * it completes off its own book, and notes them in its {@link Sitting},
+     * and once all tasks are done, they are taken away from their sellers
+     * and buyers, and their sales are added in the order of the product ids,
+     * so that the result does not depend on which task finished first.
+     */
+    private void tradeInParallel(List<Sale> sales) {
+	List<Callable<Sitting>> tasks = new ArrayList<>();
+	for (String productId : new TreeSet<>(getProductsInMarket())) {
+	    OrderBook book = orderBooks.get(productId);
+	    tasks.add(() -> {
+		Sitting sitting = new Sitting();
+		tradeProduct(book, sitting.sales, sitting);
+		return sitting;
+	    });
+	}
+	for (Future<Sitting> future : tradingPool.invokeAll(tasks)) {
+	    Sitting sitting;
+	    try {
+		sitting = future.get();
+	    } catch (InterruptedException | ExecutionException e) {
+		// matching does not throw, nor is it interrupted
+		throw new IllegalStateException("failed to trade", e);
+	    }
+	    sitting.purchaseOrders.forEach(this::removePurchaseOrder);
+	    sitting.salesOrders.forEach(this::removeSalesOrder);
+	    sales.addAll(sitting.sales);
+	}
+    }
+
+    /**
+     * the lists a product is traded with. the market keeps one, which is
+     * reused whenever the products are traded in succession, and each
+     * {@link Sitting} has its own.
+     */
+    private static class Scratch {
+	final List<Buyer> buyers = new ArrayList<>();
+	final Set<Buyer> seen = Collections
+		.newSetFromMap(new IdentityHashMap<>());
+	final List<PurchaseOrder> purchaseOrders = new ArrayList<>();
+    }
+
+    /**
+     * the orders which were completed while trading a product in parallel,
+     * which still have to be taken away from their buyers and sellers.
+     */
+    private static class Sitting {
+	final List<Sale> sales = new ArrayList<>();
+	final List<PurchaseOrder> purchaseOrders = new ArrayList<>();
+	final List<SalesOrder> salesOrders = new ArrayList<>();
+	final Scratch scratch = new Scratch();
+    }
+
+    /**
+     * @param sitting
+     *            where to note completed orders when trading in parallel, or
+     *            null to remove them from the market right away
+     */
+    private void tradeProduct(OrderBook book, List<Sale> sales,
+	    Sitting sitting) {
+	if (LOGGER.isDebugEnabled()) {
+	    LOGGER.debug("trading product " + book.getProductId());
+	}
+	if (!book.hasPurchaseOrders()) {
+	    if (LOGGER.isInfoEnabled()) {
+		LOGGER.info("no buyers interested in product "
+			+ book.getProductId());
+	    }
+	} else if (matchingMode == MatchingMode.SWEEP) {
+	    sweep(book, sales, sitting);
+	} else {
+	    tradeWithCheapestSeller(book, sales, sitting);
+	}
+    }
+
+    private void tradeWithCheapestSeller(OrderBook book, List<Sale> sales,
+	    Sitting sitting) {
+	Scratch scratch = sitting == null ? this.scratch : sitting.scratch;
+	List<Buyer> buyers = scratch.buyers;
+	book.collectBuyers(buyers, scratch.seen);
+	try {
+	    for (int i = 0; i < buyers.size(); i++) {
+		Buyer buyer = buyers.get(i);
+		if (LOGGER.isDebugEnabled()) {
+		    LOGGER.debug("  buyer " + buyer.getName()
+			    + " is searching for product "
+			    + book.getProductId());
+		}
+		// select the cheapest seller
+		SalesOrder cheapestSalesOrder = book.getCheapestSalesOrder();
+		if (cheapestSalesOrder == null) {
+		    if (LOGGER.isDebugEnabled()) {
+			LOGGER.debug("    market sold out of product "
+				+ book.getProductId());
+		    }
+		    return;
+		}
+		if (LOGGER.isDebugEnabled()) {
+		    LOGGER.debug("    cheapest seller is "
+			    + cheapestSalesOrder.getSeller().getName());
+		}
+		createSale(buyer, cheapestSalesOrder, book, sitting, sales);
+		LOGGER.debug("    sales completed");
+	    }
+	} finally {
+	    buyers.clear();
+	    scratch.seen.clear();
+	}
+    }
+
+    /**
+     * matches the best purchase order against the cheapest sales order,
+     * again and again, so that a purchase order is filled from as many
+     * sellers as it takes in a single trade sitting. stops as soon as the
+     * product is sold out, or the cheapest sales order is more expensive than
+     * what the best remaining purchase order accepts - since the bids are
+     * ordered by that price, no other purchase order would accept it either.
+     */
+    private void sweep(OrderBook book, List<Sale> sales, Sitting sitting) {
+	while (book.hasPurchaseOrders()) {
+	    SalesOrder cheapestSalesOrder = book.getCheapestSalesOrder();
+	    if (cheapestSalesOrder == null) {
+		if (LOGGER.isDebugEnabled()) {
+		    LOGGER.debug("    market sold out of product "
+			    + book.getProductId());
+		}
+		return;
+	    }
+	    PurchaseOrder bestPurchaseOrder = book.getBestPurchaseOrder();
+	    if (cheapestSalesOrder.getPrice() > bestPurchaseOrder
+		    .getMaximumAcceptedPrice()) {
+		if (LOGGER.isDebugEnabled()) {
+		    LOGGER.debug("    no buyer accepts the price of "
+			    + cheapestSalesOrder);
+		}
+		return;
+	    }
+	    sales.add(match(bestPurchaseOrder, cheapestSalesOrder, book,
+		    sitting));
+	}
+    }
 
     /**
      * creates a sale if the prices is within the buyers budget. iterates all of
@@ -151,8 +499,25 @@ public class Market {
      *         quantity of the product from the seller/buyer.
      */
     public List<Sale> createSale(Buyer buyer, Seller seller, String productId) {
-	SalesOrder cheapestSalesOrder = seller.getCheapestSalesOrder(productId);
-	LOGGER.logDebug("cheapest sales order " + cheapestSalesOrder);
+	return createSale(buyer, seller.getCheapestSalesOrder(productId));
+    }
+
+    /**
+     * as {@link #createSale(Buyer, Seller, String)}, for when the sellers
+     * cheapest sales order is already known, eg from the {@link OrderBook}.
+     */
+    public List<Sale> createSale(Buyer buyer, SalesOrder cheapestSalesOrder) {
+	List<Sale> sales = new ArrayList<>();
+	createSale(buyer, cheapestSalesOrder, orderBooks.get(cheapestSalesOrder
+		.getProductId()), null, sales);
+	return sales;
+    }
+
+    private void createSale(Buyer buyer, SalesOrder cheapestSalesOrder,
+	    OrderBook book, Sitting sitting, List<Sale> sales) {
+	if (LOGGER.isDebugEnabled()) {
+	    LOGGER.debug("cheapest sales order " + cheapestSalesOrder);
+	}
 
 	// find the buyers purchase orders, where the po.price =>
 	// cheapestSalesOrder.price
@@ -160,47 +525,84 @@ public class Market {
 	// until either the seller has no more stock at this price
 	// or the buyer has bought all they want
 
-	List<PurchaseOrder> purchaseOrders = buyer.getRelevantPurchaseOrders(
-		productId, cheapestSalesOrder.getPrice());
-	LOGGER.logDebug("relevant purchase orders: " + purchaseOrders);
+	List<PurchaseOrder> purchaseOrders = (sitting == null ? scratch
+		: sitting.scratch).purchaseOrders;
+	buyer.collectRelevantPurchaseOrders(cheapestSalesOrder.getProductId(),
+		cheapestSalesOrder.getPrice(), purchaseOrders);
+	if (LOGGER.isDebugEnabled()) {
+	    LOGGER.debug("relevant purchase orders: " + purchaseOrders);
+	}
 
-	List<Sale> sales = new ArrayList<>();
-	purchaseOrders.stream().forEach(
-		purchaseOrder -> {
-		    int quantity = Math.min(
-			    cheapestSalesOrder.getRemainingQuantity(),
-			    purchaseOrder.getRemainingQuantity());
-		    LOGGER.logDebug("quantity " + quantity + " for PO: "
-			    + purchaseOrder);
-		    if (quantity > 0) {
-			Sale sale = new Sale(buyer, seller, productId,
-				cheapestSalesOrder.getPrice(), quantity);
-
-			// add PO and SO for events
-			sale.setPurchaseOrder(purchaseOrder);
-			sale.setSalesOrder(cheapestSalesOrder);
-			sales.add(sale);
-			LOGGER.logDebug("created sale: " + sale);
-
-			// adjust quantities purchaseOrder.remainingQuantity -=
-			// quantity;
-			cheapestSalesOrder.reduceRemainingQuantity(quantity);
-
-			// remove completed purchase wishes
-			if (purchaseOrder.getRemainingQuantity() == 0) {
-			    LOGGER.logDebug("PO complete: " + sale);
-			    buyer.removePurchaseOrder(purchaseOrder);
-			}
-		    }
-		});
+	// when trading in parallel, completed purchase orders stay with their
+	// buyer until the end of the sitting
+	try {
+	    for (int i = 0; i < purchaseOrders.size(); i++) {
+		PurchaseOrder purchaseOrder = purchaseOrders.get(i);
+		if (cheapestSalesOrder.getRemainingQuantity() > 0
+			&& purchaseOrder.getRemainingQuantity() > 0) {
+		    sales.add(match(purchaseOrder, cheapestSalesOrder, book,
+			    sitting));
+		}
+	    }
+	} finally {
+	    purchaseOrders.clear();
+	}
+    }
 
-	// remove completed sales orders
-	if (cheapestSalesOrder.getRemainingQuantity() == 0) {
-	    LOGGER.logDebug("SO complete: " + cheapestSalesOrder);
-	    seller.removeSalesOrder(cheapestSalesOrder);
+    /**
+     * creates a sale for as much as both orders allow, and removes whichever
+     * of them is complete from the market - or, when trading in parallel,
+     * only from the book, noting it in the sitting.
+     */
+    private Sale match(PurchaseOrder purchaseOrder, SalesOrder salesOrder,
+	    OrderBook book, Sitting sitting) {
+	int quantity = Math.min(salesOrder.getRemainingQuantity(),
+		purchaseOrder.getRemainingQuantity());
+	Sale sale = new Sale(purchaseOrder.getBuyer(), salesOrder.getSeller(),
+		salesOrder.getProductId(), salesOrder.getPrice(), quantity);
+
+	// add PO and SO for events
+	sale.setPurchaseOrder(purchaseOrder);
+	sale.setSalesOrder(salesOrder);
+	if (LOGGER.isDebugEnabled()) {
+	    LOGGER.debug("quantity " + quantity + " for PO: " + purchaseOrder);
+	    LOGGER.debug("created sale: " + sale);
 	}
 
-	return sales;
+	// adjust quantities
+	purchaseOrder.reduceRemainingQuantity(quantity);
+	salesOrder.reduceRemainingQuantity(quantity);
+	book.purchaseOrderReduced(quantity);
+	book.salesOrderReduced(quantity);
+	sale.setRemainingQuantities(salesOrder.getRemainingQuantity(),
+		purchaseOrder.getRemainingQuantity());
+
+	// remove completed purchase wishes
+	if (purchaseOrder.getRemainingQuantity() == 0) {
+	    if (LOGGER.isDebugEnabled()) {
+		LOGGER.debug("PO complete: " + sale);
+	    }
+	    if (sitting == null) {
+		removePurchaseOrder(purchaseOrder);
+	    } else {
+		book.removePurchaseOrder(purchaseOrder);
+		sitting.purchaseOrders.add(purchaseOrder);
+	    }
+	}
+
+	// remove completed sales orders
+	if (salesOrder.getRemainingQuantity() == 0) {
+	    if (LOGGER.isDebugEnabled()) {
+		LOGGER.debug("SO complete: " + salesOrder);
+	    }
+	    if (sitting == null) {
+		removeSalesOrder(salesOrder);
+	    } else {
+		book.removeSalesOrder(salesOrder);
+		sitting.salesOrders.add(salesOrder);
+	    }
+	}
+	return sale;
     }
 
     /**
@@ -208,32 +610,190 @@ public class Market {
      *         product
      */
     public List<Buyer> getBuyersInterestedInProduct(final String productId) {
-	return this.buyers.stream().filter(buyer -> {
-	    return buyer.getPurchaseOrders().stream().anyMatch(po -> {
-		return po.getProductId().equals(productId);
-	    });
-	}).collect(Collectors.toList());
+	OrderBook book = orderBooks.get(productId);
+	return book == null ? new ArrayList<>() : book.getBuyers();
     }
 
     /** @return all product IDs that are for sale in the market */
     public Set<String> getProductsInMarket() {
-	// TODO use flatmap, but also in js too!
 	Set<String> productsInMarket = new HashSet<>();
-	sellers.forEach(seller -> {
-	    seller.getSalesOrders().stream().forEach(salesOrder -> {
-		productsInMarket.add(salesOrder.getProductId());
-	    });
+	orderBooks.forEach((productId, book) -> {
+	    if (book.hasSalesOrders()) {
+		productsInMarket.add(productId);
+	    }
 	});
 	return productsInMarket;
     }
 
+    /** @return the order book for the given product, or null if none */
+    public OrderBook getOrderBook(String productId) {
+	return orderBooks.get(productId);
+    }
+
+    /** @return the order books of all products which were ever traded */
+    public Collection<OrderBook> getOrderBooks() {
+	return orderBooks.values();
+    }
+
+    /**
+     * takes the order book of the given product out of the market, and its
+     * orders away from their sellers and buyers, eg to move it to another
+     * market. the orders keep their remaining quantities.
+     * 
+     * @return the book, or null if the product has none
+     */
+    public OrderBook removeOrderBook(String productId) {
+	OrderBook book = orderBooks.remove(productId);
+	if (book == null) {
+	    return null;
+	}
+	books.remove(book);
+	for (PriceLevel<SalesOrder> level : book.getAskLevels()) {
+	    for (SalesOrder so : level.getOrders()) {
+		TimingWheel.Timeout<SalesOrder> timeout = salesOrderTimeouts
+			.remove(so);
+		if (timeout != null) {
+		    timeout.cancel();
+		}
+		so.getSeller().removeSalesOrder(so);
+		forgetSalesOrder(so);
+	    }
+	}
+	for (PriceLevel<PurchaseOrder> level : book.getBidLevels()) {
+	    for (PurchaseOrder po : level.getOrders()) {
+		TimingWheel.Timeout<PurchaseOrder> timeout;
+		timeout = purchaseOrderTimeouts.remove(po);
+		if (timeout != null) {
+		    timeout.cancel();
+		}
+		po.getBuyer().removePurchaseOrder(po);
+		forgetPurchaseOrder(po);
+	    }
+	}
+	return book;
+    }
+
+    // only if it is this very order, and not one which replaced it
+    private void forgetSalesOrder(SalesOrder salesOrder) {
+	if (salesOrdersById.get(salesOrder.getId()) == salesOrder) {
+	    salesOrdersById.remove(salesOrder.getId());
+	}
+    }
+
+    private void forgetPurchaseOrder(PurchaseOrder purchaseOrder) {
+	if (purchaseOrdersById.get(purchaseOrder.getId()) == purchaseOrder) {
+	    purchaseOrdersById.remove(purchaseOrder.getId());
+	}
+    }
+
+    private OrderBook getOrCreateOrderBook(String productId) {
+	OrderBook book = orderBooks.get(productId);
+	if (book == null) {
+	    book = new OrderBook(productId);
+	    orderBooks.put(productId, book);
+	    books.add(book);
+	}
+	return book;
+    }
+
+    /**
+     * the number of resting orders and their remaining quantity, per product
+     * and side, as they were when {@link Market#getMarketInfo} was called. it
+     * does not change with the market, so it can be read from any thread.
+     */
     public static class MarketInfo {
-	public Map<String, List<PurchaseOrder>> pos;
-	public Map<String, List<SalesOrder>> sos;
+	private final Map<String, ProductInfo> products = new HashMap<>();
+
+	/** @return the products which have an order book, by id */
+	public Map<String, ProductInfo> getProducts() {
+	    return Collections.unmodifiableMap(products);
+	}
+
+	/** @return the product's figures, or null if it has no order book */
+	public ProductInfo getProduct(String productId) {
+	    return products.get(productId);
+	}
     }
 
+    /** the figures of a single product's order book, see {@link MarketInfo} */
+    public static class ProductInfo {
+	private final String productId;
+	private final int salesOrderCount;
+	private final int purchaseOrderCount;
+	private final long salesQuantity;
+	private final long purchaseQuantity;
+
+	ProductInfo(OrderBook book) {
+	    this.productId = book.getProductId();
+	    this.salesOrderCount = book.getSalesOrderCount();
+	    this.purchaseOrderCount = book.getPurchaseOrderCount();
+	    this.salesQuantity = book.getSalesQuantity();
+	    this.purchaseQuantity = book.getPurchaseQuantity();
+	}
+
+	public String getProductId() {
+	    return productId;
+	}
+
+	public int getSalesOrderCount() {
+	    return salesOrderCount;
+	}
+
+	public int getPurchaseOrderCount() {
+	    return purchaseOrderCount;
+	}
+
+	public long getSalesQuantity() {
+	    return salesQuantity;
+	}
+
+	public long getPurchaseQuantity() {
+	    return purchaseQuantity;
+	}
+
+	@Override
+	public String toString() {
+	    return productId + ": " + salesOrderCount + " SOs for "
+		    + salesQuantity + ", " + purchaseOrderCount + " POs for "
+		    + purchaseQuantity;
+	}
+    }
+
+    /**
+     * builds the market info from the figures which the order books keep up
+     * to date, which takes one step per product rather than one per order. to
+     * be called from the thread which trades, see
+     * {@link TradingEngine#requestMarketInfo}.
+     */
     public MarketInfo getMarketInfo() {
-	return marketInfo;
+	MarketInfo info = new MarketInfo();
+	for (int i = 0; i < books.size(); i++) {
+	    OrderBook book = books.get(i);
+	    info.products.put(book.getProductId(), new ProductInfo(book));
+	}
+	return info;
+    }
+
+    public MatchingMode getMatchingMode() {
+	return matchingMode;
+    }
+
+    public void setMatchingMode(MatchingMode matchingMode) {
+	this.matchingMode = matchingMode;
+    }
+
+    public ForkJoinPool getTradingPool() {
+	return tradingPool;
+    }
+
+    /**
+     * @param tradingPool
+     *            the pool on which the products are traded in parallel at
+     *            each sitting, which may be shared by several markets, or
+     *            null to trade them one after another
+     */
+    public void setTradingPool(ForkJoinPool tradingPool) {
+	this.tradingPool = tradingPool;
     }
 
     public List<Seller> getSellers() {
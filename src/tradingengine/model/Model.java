@@ -30,4 +30,24 @@ public abstract class Model {
 		ToStringStyle.SHORT_PREFIX_STYLE);
     }
 
+    /** appends the string as a JSON string, in quotes */
+    protected static void appendJson(StringBuilder sb, String s) {
+	if (s == null) {
+	    sb.append("null");
+	    return;
+	}
+	sb.append('"');
+	for (int i = 0; i < s.length(); i++) {
+	    char c = s.charAt(i);
+	    if (c == '"' || c == '\\') {
+		sb.append('\\').append(c);
+	    } else if (c < 0x20) {
+		sb.append(String.format("\\u%04x", (int) c));
+	    } else {
+		sb.append(c);
+	    }
+	}
+	sb.append('"');
+    }
+
 }
@@ -1,5 +1,10 @@
 package tradingengine.model;
 
+/**
+ * a model with an id, which is all it is compared and hashed by, rather than
+ * by reflection on all its fields, since the orders are compared whenever
+ * they are removed from a list.
+ */
 public class ModelId extends Model {
 
     private int id;
@@ -11,4 +16,20 @@ public class ModelId extends Model {
     public void setId(int id) {
 	this.id = id;
     }
+
+    @Override
+    public int hashCode() {
+	return id;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+	if (this == obj)
+	    return true;
+	if (obj == null)
+	    return false;
+	if (getClass() != obj.getClass())
+	    return false;
+	return id == ((ModelId) obj).id;
+    }
 }
@@ -0,0 +1,52 @@
+package tradingengine.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A number of new orders, each with the name of its seller or buyer, which
+ * are handed to an engine in one go, see
+ * {@link TradingEngine#addOrders(OrderBatch)}.
+ */
+public class OrderBatch {
+
+    private final List<String> participants;
+    private final List<Object> orders;
+
+    public OrderBatch() {
+	this(16);
+    }
+
+    public OrderBatch(int expectedSize) {
+	this.participants = new ArrayList<>(expectedSize);
+	this.orders = new ArrayList<>(expectedSize);
+    }
+
+    public void add(String seller, SalesOrder salesOrder) {
+	participants.add(seller);
+	orders.add(salesOrder);
+    }
+
+    public void add(String buyer, PurchaseOrder purchaseOrder) {
+	participants.add(buyer);
+	orders.add(purchaseOrder);
+    }
+
+    public int size() {
+	return orders.size();
+    }
+
+    public boolean isEmpty() {
+	return orders.isEmpty();
+    }
+
+    /** @return the name of the seller or buyer of the i-th order */
+    public String getParticipant(int i) {
+	return participants.get(i);
+    }
+
+    /** @return the i-th order, a {@link SalesOrder} or {@link PurchaseOrder} */
+    public Object getOrder(int i) {
+	return orders.get(i);
+    }
+}
@@ -0,0 +1,242 @@
+package tradingengine.model;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The resting orders of a single product. Sales orders (the ask side) are
+ * grouped into price levels, cheapest first. Purchase orders (the bid side)
+ * are grouped into price levels by their maximum accepted price, most generous
+ * first. Within a level, orders are queued in the order they arrived, so the
+ * head of the best level is always the order with price/time priority.
+ *
+ * Finding the best level, inserting and removing a level are O(log levels).
+ * Removing the head of a level (the common case when an order is filled) is
+ * O(1).
+ *
+ * The book also keeps the number of resting orders and their remaining
+ * quantities on each side up to date, so that reporting on the market does
+ * not have to walk the orders.
+ */
+public class OrderBook {
+
+    private final String productId;
+
+    private final TreeMap<Double, PriceLevel<SalesOrder>> asks = new TreeMap<>();
+    private final TreeMap<Double, PriceLevel<PurchaseOrder>> bids = new TreeMap<>(
+	    Collections.reverseOrder());
+    private int salesOrderCount;
+    private int purchaseOrderCount;
+    private long salesQuantity;
+    private long purchaseQuantity;
+
+    public OrderBook(String productId) {
+	this.productId = productId;
+    }
+
+    public String getProductId() {
+	return productId;
+    }
+
+    public void addSalesOrder(SalesOrder salesOrder) {
+	add(asks, salesOrder.getPrice(), salesOrder);
+	salesOrderCount++;
+	salesQuantity += salesOrder.getRemainingQuantity();
+    }
+
+    /** @return true if the order was resting in this book */
+    public boolean removeSalesOrder(SalesOrder salesOrder) {
+	if (!remove(asks, salesOrder.getPrice(), salesOrder)) {
+	    return false;
+	}
+	salesOrderCount--;
+	salesQuantity -= salesOrder.getRemainingQuantity();
+	return true;
+    }
+
+    public void addPurchaseOrder(PurchaseOrder purchaseOrder) {
+	add(bids, purchaseOrder.getMaximumAcceptedPrice(), purchaseOrder);
+	purchaseOrderCount++;
+	purchaseQuantity += purchaseOrder.getRemainingQuantity();
+    }
+
+    /** @return true if the order was resting in this book */
+    public boolean removePurchaseOrder(PurchaseOrder purchaseOrder) {
+	if (!remove(bids, purchaseOrder.getMaximumAcceptedPrice(),
+		purchaseOrder)) {
+	    return false;
+	}
+	purchaseOrderCount--;
+	purchaseQuantity -= purchaseOrder.getRemainingQuantity();
+	return true;
+    }
+
+    /**
+     * @return the sales order with the lowest price, the oldest one if several
+     *         share that price, or null if nothing is on offer
+     */
+    public SalesOrder getCheapestSalesOrder() {
+	return asks.isEmpty() ? null : asks.get(asks.firstKey()).orders
+		.peekFirst();
+    }
+
+    /**
+     * @return the purchase order with the highest maximum accepted price, the
+     *         oldest one if several share that price, or null if nobody is
+     *         buying
+     */
+    public PurchaseOrder getBestPurchaseOrder() {
+	return bids.isEmpty() ? null : bids.get(bids.firstKey()).orders
+		.peekFirst();
+    }
+
+    public boolean hasSalesOrders() {
+	return !asks.isEmpty();
+    }
+
+    public boolean hasPurchaseOrders() {
+	return !bids.isEmpty();
+    }
+
+    /** @return the number of resting sales orders */
+    public int getSalesOrderCount() {
+	return salesOrderCount;
+    }
+
+    /** @return the number of resting purchase orders */
+    public int getPurchaseOrderCount() {
+	return purchaseOrderCount;
+    }
+
+    /** @return the remaining quantity of all resting sales orders */
+    public long getSalesQuantity() {
+	return salesQuantity;
+    }
+
+    /** @return the remaining quantity of all resting purchase orders */
+    public long getPurchaseQuantity() {
+	return purchaseQuantity;
+    }
+
+    /**
+     * to be called after the remaining quantity of a resting sales order was
+     * reduced, by a sale or an amendment, which the book does not see.
+     */
+    void salesOrderReduced(int quantity) {
+	salesQuantity -= quantity;
+    }
+
+    /** as {@link #salesOrderReduced}, for a resting purchase order */
+    void purchaseOrderReduced(int quantity) {
+	purchaseQuantity -= quantity;
+    }
+
+    /** @return the ask levels, cheapest first */
+    public Collection<PriceLevel<SalesOrder>> getAskLevels() {
+	return Collections.unmodifiableCollection(asks.values());
+    }
+
+    /** @return the bid levels, most generous first */
+    public Collection<PriceLevel<PurchaseOrder>> getBidLevels() {
+	return Collections.unmodifiableCollection(bids.values());
+    }
+
+    /**
+     * @return the buyers with a purchase order in this book, in price/time
+     *         priority of their best purchase order
+     */
+    public List<Buyer> getBuyers() {
+	List<Buyer> buyers = new ArrayList<>();
+	collectBuyers(buyers, new HashSet<>());
+	return buyers;
+    }
+
+    /**
+     * as {@link #getBuyers}, but adds them to the given list, so that the
+     * market can reuse it from one trade sitting to the next.
+     *
+     * @param seen
+     *            the buyers already added, which are skipped
+     */
+    public void collectBuyers(List<Buyer> into, Set<Buyer> seen) {
+	for (PriceLevel<PurchaseOrder> level : bids.values()) {
+	    for (PurchaseOrder po : level.orders) {
+		if (seen.add(po.getBuyer())) {
+		    into.add(po.getBuyer());
+		}
+	    }
+	}
+    }
+
+    private static <T> void add(TreeMap<Double, PriceLevel<T>> side,
+	    double price, T order) {
+	PriceLevel<T> level = side.get(price);
+	if (level == null) {
+	    level = new PriceLevel<>(price);
+	    side.put(price, level);
+	}
+	level.orders.addLast(order);
+    }
+
+    private static <T> boolean remove(TreeMap<Double, PriceLevel<T>> side,
+	    double price, T order) {
+	PriceLevel<T> level = side.get(price);
+	if (level == null || !level.remove(order)) {
+	    return false;
+	}
+	if (level.orders.isEmpty()) {
+	    side.remove(price);
+	}
+	return true;
+    }
+
+    /**
+     * all the orders on one side of the book at a single price, oldest first.
+     */
+    public static class PriceLevel<T> {
+	private final double price;
+	private final ArrayDeque<T> orders = new ArrayDeque<>();
+
+	PriceLevel(double price) {
+	    this.price = price;
+	}
+
+	public double getPrice() {
+	    return price;
+	}
+
+	public Collection<T> getOrders() {
+	    return Collections.unmodifiableCollection(orders);
+	}
+
+	public int size() {
+	    return orders.size();
+	}
+
+	/**
+	 * removes by identity rather than equals: the order in the book is the
+	 * very object, and a comparison is then a single instruction
+	 */
+	private boolean remove(T order) {
+	    if (orders.peekFirst() == order) {
+		orders.pollFirst();
+		return true;
+	    }
+	    Iterator<T> it = orders.iterator();
+	    while (it.hasNext()) {
+		if (it.next() == order) {
+		    it.remove();
+		    return true;
+		}
+	    }
+	    return false;
+	}
+    }
+}
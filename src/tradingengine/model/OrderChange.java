@@ -0,0 +1,100 @@
+package tradingengine.model;
+
+/**
+ * A request to cancel or amend a resting order, see
+ * {@link TradingEngine#changeOrder(OrderChange)}. It reaches the engine the
+ * same way new orders do, so it is applied after every order which was added
+ * before it, at the next trading session at the latest.
+ */
+public class OrderChange {
+
+    private final String participant;
+    private final String productId;
+    private final int orderId;
+    private final int quantity;
+    private final double price;
+
+    private OrderChange(String participant, String productId, int orderId,
+	    int quantity, double price) {
+	this.participant = participant;
+	this.productId = productId;
+	this.orderId = orderId;
+	this.quantity = quantity;
+	this.price = price;
+    }
+
+    /** takes the order out of the market, if it is still there */
+    public static OrderChange cancel(String participant, String productId,
+	    int orderId) {
+	return new OrderChange(participant, productId, orderId, 0, Double.NaN);
+    }
+
+    /**
+     * changes the remaining quantity of the order, and its price, or the
+     * maximum accepted price of a purchase order, unless the price is NaN.
+     */
+    public static OrderChange amend(String participant, String productId,
+	    int orderId, int quantity, double price) {
+	if (quantity <= 0) {
+	    throw new IllegalArgumentException("an order cannot be amended to "
+		    + quantity + ", cancel it instead");
+	}
+	return new OrderChange(participant, productId, orderId, quantity,
+		price);
+    }
+
+    /** @return the name of the seller or buyer who asked for the change */
+    public String getParticipant() {
+	return participant;
+    }
+
+    public String getProductId() {
+	return productId;
+    }
+
+    public int getOrderId() {
+	return orderId;
+    }
+
+    public boolean isCancel() {
+	return quantity == 0;
+    }
+
+    /** @return the new remaining quantity, 0 for a cancel */
+    public int getQuantity() {
+	return quantity;
+    }
+
+    /** @return the new price, or NaN to keep the old one */
+    public double getPrice() {
+	return price;
+    }
+
+    /**
+     * @return the change as JSON, eg for the response to /cancel or /amend.
+     *         an amendment which keeps the price has none.
+     */
+    public String toJson() {
+	StringBuilder sb = new StringBuilder(96);
+	sb.append("{\"id\":").append(orderId);
+	sb.append(",\"change\":\"").append(isCancel() ? "cancel" : "amend");
+	sb.append("\",\"productId\":");
+	Model.appendJson(sb, productId);
+	if (!isCancel()) {
+	    sb.append(",\"quantity\":").append(quantity);
+	    if (!Double.isNaN(price)) {
+		sb.append(",\"price\":").append(price);
+	    }
+	}
+	sb.append(",\"participant\":");
+	Model.appendJson(sb, participant);
+	sb.append('}');
+	return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+	return (isCancel() ? "cancel" : "amend to " + quantity + " at "
+		+ price) + " of order " + orderId + " by " + participant;
+    }
+}
@@ -0,0 +1,166 @@
+package tradingengine.model;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+/**
+ * A lock free, pre-allocated ring buffer which carries new orders, and
+ * {@link OrderChange}s to resting ones, from any number of request threads to
+ * the single engine thread, in the style of the LMAX Disruptor.
+ *
+ * A producer claims the next sequence number, or a run of them for a whole
+ * {@link OrderBatch}, with a CAS, writes the orders into the slots for them
+ * and then publishes each slot by storing its sequence number in
+ * {@link #published}. The engine thread drains the published slots
+ * in order, in batches, and moves its own sequence on once a batch is done,
+ * which frees those slots for the producers again. If the ring is full,
+ * producers spin and then park briefly, until the engine has caught up.
+ *
+ * Only {@link #drain} must be called from a single thread.
+ */
+public class OrderRing {
+
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private final int capacity;
+    private final int mask;
+
+    private final String[] participants;
+    private final Object[] orders;
+
+    /** the sequence number last published in each slot */
+    private final AtomicLongArray published;
+
+    /** the next sequence number to be claimed by a producer */
+    private final AtomicLong claimed = new AtomicLong();
+
+    /** the next sequence number to be drained by the consumer */
+    private final AtomicLong consumed = new AtomicLong();
+
+    /** @param capacity the number of slots, rounded up to a power of two */
+    public OrderRing(int capacity) {
+	this.capacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+	this.mask = this.capacity - 1;
+	this.participants = new String[this.capacity];
+	this.orders = new Object[this.capacity];
+	this.published = new AtomicLongArray(this.capacity);
+	for (int i = 0; i < this.capacity; i++) {
+	    published.set(i, -1);
+	}
+    }
+
+    /**
+     * hands a sales order from the named seller to the engine. waits if the
+     * ring is full.
+     */
+    public void publish(String seller, SalesOrder salesOrder) {
+	publishOrder(seller, salesOrder);
+    }
+
+    /**
+     * hands a purchase order from the named buyer to the engine. waits if the
+     * ring is full.
+     */
+    public void publish(String buyer, PurchaseOrder purchaseOrder) {
+	publishOrder(buyer, purchaseOrder);
+    }
+
+    /**
+     * hands a cancel or amendment to the engine, behind the orders which were
+     * published before it. waits if the ring is full.
+     */
+    public void publish(OrderChange change) {
+	publishOrder(change.getParticipant(), change);
+    }
+
+    /**
+     * hands all orders of the batch to the engine, claiming as many slots as
+     * possible at once. waits if the ring is full.
+     */
+    public void publish(OrderBatch batch) {
+	int size = batch.size();
+	for (int from = 0; from < size;) {
+	    int count = Math.min(size - from, capacity);
+	    long first = claim(count);
+	    for (int j = 0; j < count; j++) {
+		publishSlot(first + j, batch.getParticipant(from + j),
+			batch.getOrder(from + j));
+	    }
+	    from += count;
+	}
+    }
+
+    private void publishOrder(String who, Object order) {
+	publishSlot(claim(1), who, order);
+    }
+
+    private void publishSlot(long sequence, String who, Object order) {
+	int i = (int) sequence & mask;
+	participants[i] = who;
+	orders[i] = order;
+	// a volatile store, so that a waiting engine which checks the ring
+	// after announcing that it waits, can not miss the order
+	published.set(i, sequence);
+    }
+
+    /**
+     * @return the first of the given number of consecutive sequence numbers,
+     *         once all their slots are free
+     */
+    private long claim(int count) {
+	int spins = 0;
+	while (true) {
+	    long sequence = claimed.get();
+	    if (sequence + count - consumed.get() > capacity) {
+		// full, so wait for the engine to drain
+		if (++spins < 100) {
+		    Thread.onSpinWait();
+		} else {
+		    LockSupport.parkNanos(1000);
+		}
+	    } else if (claimed.compareAndSet(sequence, sequence + count)) {
+		return sequence;
+	    }
+	}
+    }
+
+    /**
+     * hands at most the given number of published orders to the consumer, in
+     * the order they were claimed, with the name of their buyer or seller.
+     * stops at the first slot which was claimed but is not yet published.
+     *
+     * @return the number of orders drained
+     */
+    public int drain(int max, BiConsumer<String, Object> consumer) {
+	long first = consumed.get();
+	long sequence = first;
+	long end = first + max;
+	while (sequence < end) {
+	    int i = (int) sequence & mask;
+	    if (published.get(i) != sequence) {
+		break;
+	    }
+	    String who = participants[i];
+	    Object order = orders[i];
+	    participants[i] = null;
+	    orders[i] = null;
+	    consumer.accept(who, order);
+	    sequence++;
+	}
+	if (sequence != first) {
+	    consumed.lazySet(sequence);
+	}
+	return (int) (sequence - first);
+    }
+
+    /** @return roughly the number of orders waiting to be drained */
+    public int size() {
+	return (int) Math.max(0, claimed.get() - consumed.get());
+    }
+
+    public int getCapacity() {
+	return capacity;
+    }
+}
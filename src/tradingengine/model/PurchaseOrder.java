@@ -2,7 +2,7 @@ package tradingengine.model;
 
 import java.util.Date;
 
-public class PurchaseOrder extends IdModel {
+public class PurchaseOrder extends ModelId {
 
     private String productId;
     private int remainingQuantity;
@@ -13,11 +13,17 @@ public class PurchaseOrder extends IdModel {
 
     public PurchaseOrder(String productId, int quantity,
 	    double maximumAcceptedPrice, int id) {
+	this(productId, quantity, maximumAcceptedPrice, id, new Date());
+    }
+
+    /** an order which was created at the given time, eg when recovering */
+    PurchaseOrder(String productId, int quantity,
+	    double maximumAcceptedPrice, int id, Date created) {
 	this.productId = productId;
 	this.remainingQuantity = quantity;
 	this.originalQuantity = quantity;
 	this.maximumAcceptedPrice = maximumAcceptedPrice;
-	this.created = new Date();
+	this.created = created;
 	setId(id);
     }
 
@@ -49,4 +55,36 @@ public class PurchaseOrder extends IdModel {
 	return remainingQuantity;
     }
 
+    public void reduceRemainingQuantity(int quantity) {
+	this.remainingQuantity -= quantity;
+    }
+
+    @Override
+    public String toString() {
+	StringBuilder sb = new StringBuilder(160);
+	sb.append("PurchaseOrder[productId=").append(productId);
+	sb.append(",remainingQuantity=").append(remainingQuantity);
+	sb.append(",originalQuantity=").append(originalQuantity);
+	sb.append(",maximumAcceptedPrice=").append(maximumAcceptedPrice);
+	sb.append(",created=").append(created.getTime());
+	sb.append(",buyer=").append(buyer == null ? null : buyer.getName());
+	sb.append(",id=").append(getId()).append(']');
+	return sb.toString();
+    }
+
+    /** @return the order as JSON, eg for the response to /buy */
+    public String toJson() {
+	StringBuilder sb = new StringBuilder(160);
+	sb.append("{\"id\":").append(getId());
+	sb.append(",\"productId\":");
+	appendJson(sb, productId);
+	sb.append(",\"maximumAcceptedPrice\":").append(maximumAcceptedPrice);
+	sb.append(",\"remainingQuantity\":").append(remainingQuantity);
+	sb.append(",\"originalQuantity\":").append(originalQuantity);
+	sb.append(",\"created\":").append(created.getTime());
+	sb.append(",\"buyer\":");
+	appendJson(sb, buyer == null ? null : buyer.getName());
+	sb.append('}');
+	return sb.toString();
+    }
 }
@@ -2,9 +2,10 @@ package tradingengine.model;
 
 import java.util.Date;
 
-public class Sale extends IdModel {
+public class Sale extends ModelId {
 
-    private Date timestamp;
+    // millis rather than a Date, so that matching allocates only the sale
+    private long timestamp;
     private Buyer buyer;
     private Seller seller;
     private String productId;
@@ -12,6 +13,10 @@ public class Sale extends IdModel {
     private int quantity;
     private SalesOrder salesOrder;
     private PurchaseOrder purchaseOrder;
+    // what was left of the orders right after the sale. the orders themselves
+    // may be filled further before the sale's events are delivered
+    private int salesOrderRemaining;
+    private int purchaseOrderRemaining;
 
     /**
      * a sale from a seller to a buyer for the given product and price and
@@ -24,7 +29,7 @@ public class Sale extends IdModel {
 	this.productId = productId;
 	this.price = price;
 	this.quantity = quantity;
-	this.timestamp = new Date();
+	this.timestamp = System.currentTimeMillis();
     }
 
     public Buyer getBuyer() {
@@ -47,7 +52,13 @@ public class Sale extends IdModel {
 	return seller;
     }
 
+    /** @return a new date, see {@link #getTime} */
     public Date getTimestamp() {
+	return new Date(timestamp);
+    }
+
+    /** @return when the sale was made, in millis */
+    public long getTime() {
 	return timestamp;
     }
 
@@ -67,4 +78,59 @@ public class Sale extends IdModel {
 	return purchaseOrder;
     }
 
+    /** notes what was left of both orders right after the sale */
+    void setRemainingQuantities(int salesOrderRemaining,
+	    int purchaseOrderRemaining) {
+	this.salesOrderRemaining = salesOrderRemaining;
+	this.purchaseOrderRemaining = purchaseOrderRemaining;
+    }
+
+    /**
+     * @return the remaining quantity of the sales order right after this
+     *         sale, 0 if the sale completed it
+     */
+    public int getSalesOrderRemaining() {
+	return salesOrderRemaining;
+    }
+
+    /** as {@link #getSalesOrderRemaining}, for the purchase order */
+    public int getPurchaseOrderRemaining() {
+	return purchaseOrderRemaining;
+    }
+
+    /**
+     * a sale is only ever equal to itself: its id is only set once it was
+     * persisted, see {@link SaleWriter}, so it cannot be hashed by it.
+     */
+    @Override
+    public boolean equals(Object obj) {
+	return this == obj;
+    }
+
+    @Override
+    public int hashCode() {
+	return System.identityHashCode(this);
+    }
+
+    /** names the participants and orders, rather than printing them whole */
+    @Override
+    public String toString() {
+	StringBuilder sb = new StringBuilder(160);
+	sb.append("Sale[timestamp=").append(timestamp);
+	sb.append(",buyer=").append(buyer == null ? null : buyer.getName());
+	sb.append(",seller=").append(seller == null ? null : seller.getName());
+	sb.append(",productId=").append(productId);
+	sb.append(",price=").append(price);
+	sb.append(",quantity=").append(quantity);
+	sb.append(",salesOrder=");
+	if (salesOrder != null) {
+	    sb.append(salesOrder.getId());
+	}
+	sb.append(",purchaseOrder=");
+	if (purchaseOrder != null) {
+	    sb.append(purchaseOrder.getId());
+	}
+	sb.append(",id=").append(getId()).append(']');
+	return sb.toString();
+    }
 }
@@ -0,0 +1,210 @@
+package tradingengine.model;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Write-behind persistence of sales. The engine hands over each trading
+ * session's sales with {@link #enqueue}, and a dedicated thread writes them to
+ * the SALES table in JDBC batches, so the engine never waits for the database
+ * - unless the queue is full, in which case it blocks until there is room
+ * again, rather than losing sales. That is counted as backpressure.
+ *
+ * A batch is written as soon as it has batchSize sales, or lingerMs after its
+ * first sale arrived, whichever comes first. Once written, each sale gets the
+ * id generated by the database.
+ */
+public class SaleWriter {
+
+    private static final Logger LOGGER = LogManager.getLogger("saleWriter");
+
+    public static final int DEFAULT_CAPACITY = 100000;
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final long DEFAULT_LINGER_MS = 5;
+
+    private static final String INSERT = "INSERT INTO SALES (BUYER_NAME, SELLER_NAME, PRODUCT_ID, PRICE, QUANTITY, PO_ID, SO_ID) "
+	    + "values (?, ?, ?, ?, ?, ?, ?)";
+
+    private final DataSource dataSource;
+    private final BlockingQueue<Sale> queue;
+    private final int batchSize;
+    private final long lingerMs;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /** timestamp of the oldest sale in the batch being written, or 0 */
+    private volatile long inFlightSince;
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong backpressured = new AtomicLong();
+    private final AtomicLong blockedNanos = new AtomicLong();
+
+    public SaleWriter(String name, DataSource dataSource, int capacity,
+	    int batchSize, long lingerMs) {
+	this.dataSource = dataSource;
+	this.queue = new ArrayBlockingQueue<>(capacity);
+	this.batchSize = batchSize;
+	this.lingerMs = lingerMs;
+	this.thread = new Thread(this::run, name);
+	this.thread.setDaemon(true);
+    }
+
+    public void start() {
+	thread.start();
+    }
+
+    /**
+     * queues the sales for writing. only blocks if the queue is full.
+     */
+    public void enqueue(List<Sale> sales) throws InterruptedException {
+	boolean warned = false;
+	for (Sale sale : sales) {
+	    if (!queue.offer(sale)) {
+		if (!warned) {
+		    LOGGER.warn("sale writer queue is full, lagging "
+			    + getLagMs() + "ms - waiting for the database");
+		    warned = true;
+		}
+		backpressured.incrementAndGet();
+		long start = System.nanoTime();
+		queue.put(sale);
+		blockedNanos.addAndGet(System.nanoTime() - start);
+	    }
+	}
+    }
+
+    /**
+     * writes whatever is still queued and stops the writer thread, waiting at
+     * most the given time for that.
+     */
+    public void close(long timeoutMs) throws InterruptedException {
+	running = false;
+	thread.join(timeoutMs);
+    }
+
+    /** @return the number of sales waiting to be written */
+    public int getQueueDepth() {
+	return queue.size();
+    }
+
+    /**
+     * @return how long ago the oldest sale which has not been written yet was
+     *         made, or 0 if everything is written
+     */
+    public long getLagMs() {
+	long oldest = inFlightSince;
+	if (oldest == 0) {
+	    Sale next = queue.peek();
+	    if (next == null) {
+		return 0;
+	    }
+	    oldest = next.getTime();
+	}
+	return System.currentTimeMillis() - oldest;
+    }
+
+    public long getWrittenCount() {
+	return written.get();
+    }
+
+    public long getFailedCount() {
+	return failed.get();
+    }
+
+    /** @return how many sales the engine had to wait to queue */
+    public long getBackpressureCount() {
+	return backpressured.get();
+    }
+
+    /** @return how long the engine has spent waiting to queue sales */
+    public long getBlockedMs() {
+	return TimeUnit.NANOSECONDS.toMillis(blockedNanos.get());
+    }
+
+    private void run() {
+	List<Sale> batch = new ArrayList<>(batchSize);
+	while (running || !queue.isEmpty()) {
+	    try {
+		Sale first = queue.poll(100, TimeUnit.MILLISECONDS);
+		if (first == null) {
+		    continue;
+		}
+		batch.add(first);
+		long lingerUntil = System.nanoTime()
+			+ TimeUnit.MILLISECONDS.toNanos(lingerMs);
+		while (batch.size() < batchSize) {
+		    queue.drainTo(batch, batchSize - batch.size());
+		    long remaining = lingerUntil - System.nanoTime();
+		    if (batch.size() == batchSize || remaining <= 0) {
+			break;
+		    }
+		    Sale next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+		    if (next == null) {
+			break;
+		    }
+		    batch.add(next);
+		}
+		write(batch);
+	    } catch (InterruptedException e) {
+		LOGGER.warn("sale writer interrupted, stopping", e);
+		Thread.currentThread().interrupt();
+		running = false;
+	    } finally {
+		batch.clear();
+		inFlightSince = 0;
+	    }
+	}
+	LOGGER.info("sale writer stopped after writing " + written.get()
+		+ " sales");
+    }
+
+    private void write(List<Sale> batch) {
+	if (batch.isEmpty()) {
+	    return;
+	}
+	inFlightSince = batch.get(0).getTime();
+	long start = System.currentTimeMillis();
+	try (Connection c = dataSource.getConnection();
+		PreparedStatement stmt = c.prepareStatement(INSERT,
+			Statement.RETURN_GENERATED_KEYS)) {
+	    for (Sale sale : batch) {
+		int i = 1;
+		stmt.setString(i++, sale.getBuyer().getName());
+		stmt.setString(i++, sale.getSeller().getName());
+		stmt.setInt(i++, Integer.parseInt(sale.getProductId()));
+		stmt.setDouble(i++, sale.getPrice());
+		stmt.setInt(i++, sale.getQuantity());
+		stmt.setInt(i++, sale.getPurchaseOrder().getId());
+		stmt.setInt(i++, sale.getSalesOrder().getId());
+		stmt.addBatch();
+	    }
+	    stmt.executeBatch();
+	    try (ResultSet rs = stmt.getGeneratedKeys()) {
+		for (int i = 0; i < batch.size() && rs.next(); i++) {
+		    batch.get(i).setId(rs.getInt(1));
+		}
+	    }
+	    written.addAndGet(batch.size());
+	    LOGGER.debug("persisted " + batch.size() + " sales in "
+		    + (System.currentTimeMillis() - start) + "ms");
+	} catch (SQLException | RuntimeException e) {
+	    failed.addAndGet(batch.size());
+	    LOGGER.error("failed to persist sales: " + batch, e);
+	}
+    }
+}
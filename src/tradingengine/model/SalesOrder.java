@@ -2,7 +2,7 @@ package tradingengine.model;
 
 import java.util.Date;
 
-public class SalesOrder extends IdModel {
+public class SalesOrder extends ModelId {
 
     private double price;
     private String productId;
@@ -15,11 +15,17 @@ public class SalesOrder extends IdModel {
      * an order to sell a given quantity of a product at a given price
      */
     public SalesOrder(double price, String productId, int quantity, int id) {
+	this(price, productId, quantity, id, new Date());
+    }
+
+    /** an order which was created at the given time, eg when recovering */
+    SalesOrder(double price, String productId, int quantity, int id,
+	    Date created) {
 	this.price = price;
 	this.productId = productId;
 	this.remainingQuantity = quantity;
 	this.originalQuantity = quantity;
-	this.created = new Date();
+	this.created = created;
 	setId(id);
     }
 
@@ -55,5 +61,32 @@ public class SalesOrder extends IdModel {
 	this.remainingQuantity -= quantity;
     }
 
-}
+    @Override
+    public String toString() {
+	StringBuilder sb = new StringBuilder(160);
+	sb.append("SalesOrder[price=").append(price);
+	sb.append(",productId=").append(productId);
+	sb.append(",remainingQuantity=").append(remainingQuantity);
+	sb.append(",originalQuantity=").append(originalQuantity);
+	sb.append(",created=").append(created.getTime());
+	sb.append(",seller=").append(seller == null ? null : seller.getName());
+	sb.append(",id=").append(getId()).append(']');
+	return sb.toString();
+    }
 
+    /** @return the order as JSON, eg for the response to /sell */
+    public String toJson() {
+	StringBuilder sb = new StringBuilder(160);
+	sb.append("{\"id\":").append(getId());
+	sb.append(",\"productId\":");
+	appendJson(sb, productId);
+	sb.append(",\"price\":").append(price);
+	sb.append(",\"remainingQuantity\":").append(remainingQuantity);
+	sb.append(",\"originalQuantity\":").append(originalQuantity);
+	sb.append(",\"created\":").append(created.getTime());
+	sb.append(",\"seller\":");
+	appendJson(sb, seller == null ? null : seller.getName());
+	sb.append('}');
+	return sb.toString();
+    }
+}
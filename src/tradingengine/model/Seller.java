@@ -1,14 +1,11 @@
 package tradingengine.model;
 
-import java.lang.runtime.ObjectMethods;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
-import javax.xml.catalog.CatalogManager;
-
 import org.apache.commons.lang3.ObjectUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -17,7 +14,7 @@ import tradingengine.model.TradingEngine.Listener;
 
 public class Seller {
 
-    private static final Logger LOGGER = CatalogManager.getLogger("seller");
+    private static final Logger LOGGER = LogManager.getLogger("seller");
 
     private List<SalesOrder> salesOrders = new ArrayList<>();
     private String name;
@@ -28,8 +25,8 @@ public class Seller {
 	this.name = name;
     }
 
-    public void addSalesOrder(SalesOrder salesOrder) {https://intellij-support.jetbrains.com/hc/en-us/articles/4407356204178-IDE-Can-t-Connect-to-JetBrains-Account
-	((Object) LOGGER).debug(name + " adding " + salesOrder);
+    public void addSalesOrder(SalesOrder salesOrder) {
+	LOGGER.debug(name + " adding " + salesOrder);
 	salesOrder.setSeller(this);
 	this.salesOrders.add(salesOrder);
     }
@@ -51,10 +48,14 @@ public class Seller {
 		.findFirst().get();
     }
 
+    /** removes exactly this sales order, not just an equal one */
     public void removeSalesOrder(SalesOrder salesOrder) {
-	this.salesOrders = this.salesOrders.stream().filter(so -> {
-	    return !salesOrder.equals(so);
-	}).collect(Collectors.toList());
+	for (int i = 0; i < salesOrders.size(); i++) {
+	    if (salesOrders.get(i) == salesOrder) {
+		salesOrders.remove(i);
+		return;
+	    }
+	}
     }
 
     /** @return the out of date ones */
@@ -66,7 +67,7 @@ public class Seller {
 		    return now - so.getCreated().getTime() > ageInMs;
 		}));
 
-	this.salesOrders = ObjectMethods.defaultIfNull(
+	this.salesOrders = ObjectUtils.defaultIfNull(
 		partitioned.get(Boolean.FALSE),
 		Collections.synchronizedList(new ArrayList<SalesOrder>()));
 	return ObjectUtils.defaultIfNull(partitioned.get(Boolean.TRUE),
@@ -0,0 +1,374 @@
+package tradingengine.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import tradingengine.model.OrderBook.PriceLevel;
+import tradingengine.model.TradingEngine.MarketPrice;
+
+/**
+ * A point in time copy of the state of a {@link TradingEngine}: its market
+ * participants, resting orders with their remaining quantities, market prices
+ * and volume windows, together with the position in the {@link Journal} up to
+ * which it is complete. Recovering means loading the latest snapshot and then
+ * replaying just the journal after that position.
+ *
+ * The engine thread only takes a copy-on-write view with {@link #capture}:
+ * everything about a resting order but its remaining quantity is fixed once
+ * it is in the market, since an amendment which changes more replaces the
+ * order. So the view shares the orders themselves and copies just their
+ * remaining quantities, into one int array, without allocating anything per
+ * order. Turning the view into values, encoding and writing the file happen
+ * on another thread, with {@link #write}.
+ *
+ * The file is written to a temporary file next to the target which is then
+ * moved over it, so there is always one complete snapshot on disk. It is laid
+ * out as a header (magic, version, time taken, journal position, highest
+ * order id), the sellers, buyers, sales orders, purchase orders, market prices
+ * and volume windows, each as a count followed by the entries, and finally a
+ * CRC32 of everything before it.
+ */
+public class Snapshot {
+
+    private static final int MAGIC = 0x54455350; // "TESP"
+    private static final int VERSION = 1;
+
+    private final long taken;
+    private final long journalPosition;
+    private final int highestOrderId;
+    private List<String> sellers;
+    private List<String> buyers;
+    private List<OrderState> salesOrders;
+    private List<OrderState> purchaseOrders;
+    private final List<MarketPrice> marketPrices;
+    private final List<VolumeWindow> volumeWindows;
+
+    // the view taken by capture, until materialize turns it into values: the
+    // participants, and the sales orders followed by the purchase orders with
+    // their remaining quantities at the time
+    private Seller[] capturedSellers;
+    private Buyer[] capturedBuyers;
+    private Object[] capturedOrders;
+    private int[] capturedRemaining;
+    private int capturedSalesOrders;
+
+    private Snapshot(long taken, long journalPosition, int highestOrderId,
+	    List<String> sellers, List<String> buyers,
+	    List<OrderState> salesOrders, List<OrderState> purchaseOrders,
+	    List<MarketPrice> marketPrices, List<VolumeWindow> volumeWindows) {
+	this.taken = taken;
+	this.journalPosition = journalPosition;
+	this.highestOrderId = highestOrderId;
+	this.sellers = sellers;
+	this.buyers = buyers;
+	this.salesOrders = salesOrders;
+	this.purchaseOrders = purchaseOrders;
+	this.marketPrices = marketPrices;
+	this.volumeWindows = volumeWindows;
+    }
+
+    /**
+     * takes a view of the given state. must be called on the engine thread,
+     * between trading sessions. it costs two array stores per resting order,
+     * see the class comment. orders are taken level by level, so that their
+     * time priority survives a restore.
+     */
+    static Snapshot capture(Market market,
+	    Map<String, MarketPrice> marketPrices,
+	    Map<String, VolumeWindow> volumeWindows, long journalPosition,
+	    int highestOrderId) {
+	int salesOrders = 0;
+	int purchaseOrders = 0;
+	for (OrderBook book : market.getOrderBooks()) {
+	    salesOrders += book.getSalesOrderCount();
+	    purchaseOrders += book.getPurchaseOrderCount();
+	}
+	Object[] orders = new Object[salesOrders + purchaseOrders];
+	int[] remaining = new int[orders.length];
+	int i = 0;
+	for (OrderBook book : market.getOrderBooks()) {
+	    for (PriceLevel<SalesOrder> level : book.getAskLevels()) {
+		for (SalesOrder so : level.getOrders()) {
+		    orders[i] = so;
+		    remaining[i++] = so.getRemainingQuantity();
+		}
+	    }
+	}
+	for (OrderBook book : market.getOrderBooks()) {
+	    for (PriceLevel<PurchaseOrder> level : book.getBidLevels()) {
+		for (PurchaseOrder po : level.getOrders()) {
+		    orders[i] = po;
+		    remaining[i++] = po.getRemainingQuantity();
+		}
+	    }
+	}
+
+	// market prices are never changed, only replaced, so can be shared
+	List<MarketPrice> prices = new ArrayList<>(marketPrices.values());
+	List<VolumeWindow> windows = new ArrayList<>(volumeWindows.size());
+	volumeWindows.values().forEach(w -> windows.add(w.copy()));
+
+	Snapshot snapshot = new Snapshot(System.currentTimeMillis(),
+		journalPosition, highestOrderId, null, null, null, null,
+		prices, windows);
+	snapshot.capturedSellers = market.getSellers().toArray(new Seller[0]);
+	snapshot.capturedBuyers = market.getBuyers().toArray(new Buyer[0]);
+	snapshot.capturedOrders = orders;
+	snapshot.capturedRemaining = remaining;
+	snapshot.capturedSalesOrders = salesOrders;
+	return snapshot;
+    }
+
+    /**
+     * turns the view taken by {@link #capture} into values. reads nothing of
+     * the orders which may have changed since, so it can run on any thread.
+     */
+    private void materialize() {
+	if (capturedOrders == null) {
+	    return;
+	}
+	sellers = new ArrayList<>(capturedSellers.length);
+	for (Seller seller : capturedSellers) {
+	    sellers.add(seller.getName());
+	}
+	buyers = new ArrayList<>(capturedBuyers.length);
+	for (Buyer buyer : capturedBuyers) {
+	    buyers.add(buyer.getName());
+	}
+	salesOrders = new ArrayList<>(capturedSalesOrders);
+	purchaseOrders = new ArrayList<>(capturedOrders.length
+		- capturedSalesOrders);
+	for (int i = 0; i < capturedOrders.length; i++) {
+	    if (i < capturedSalesOrders) {
+		SalesOrder so = (SalesOrder) capturedOrders[i];
+		salesOrders.add(new OrderState(so.getSeller().getName(), so
+			.getProductId(), so.getPrice(), so
+			.getOriginalQuantity(), capturedRemaining[i], so
+			.getId(), so.getCreated().getTime()));
+	    } else {
+		PurchaseOrder po = (PurchaseOrder) capturedOrders[i];
+		purchaseOrders.add(new OrderState(po.getBuyer().getName(), po
+			.getProductId(), po.getMaximumAcceptedPrice(), po
+			.getOriginalQuantity(), capturedRemaining[i], po
+			.getId(), po.getCreated().getTime()));
+	    }
+	}
+	capturedSellers = null;
+	capturedBuyers = null;
+	capturedOrders = null;
+	capturedRemaining = null;
+    }
+
+    /** writes the snapshot to the given file, replacing it atomically */
+    public void write(Path file) throws IOException {
+	materialize();
+	Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+	CRC32 crc = new CRC32();
+	try (OutputStream os = Files.newOutputStream(tmp)) {
+	    CheckedOutputStream cos = new CheckedOutputStream(
+		    new BufferedOutputStream(os, 64 * 1024), crc);
+	    DataOutputStream out = new DataOutputStream(cos);
+	    out.writeInt(MAGIC);
+	    out.writeInt(VERSION);
+	    out.writeLong(taken);
+	    out.writeLong(journalPosition);
+	    out.writeInt(highestOrderId);
+	    writeNames(out, sellers);
+	    writeNames(out, buyers);
+	    writeOrders(out, salesOrders);
+	    writeOrders(out, purchaseOrders);
+	    out.writeInt(marketPrices.size());
+	    for (MarketPrice mp : marketPrices) {
+		out.writeUTF(mp.getProductId());
+		out.writeDouble(mp.getPrice());
+		out.writeLong(mp.getTimestamp().getTime());
+	    }
+	    out.writeInt(volumeWindows.size());
+	    for (VolumeWindow window : volumeWindows) {
+		window.write(out);
+	    }
+	    out.flush();
+	    new DataOutputStream(os).writeLong(crc.getValue());
+	}
+	try (FileChannel channel = FileChannel.open(tmp,
+		StandardOpenOption.WRITE)) {
+	    channel.force(true);
+	}
+	Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+		StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** @return the snapshot in the given file */
+    public static Snapshot read(Path file) throws IOException {
+	CRC32 crc = new CRC32();
+	try (InputStream is = new BufferedInputStream(
+		Files.newInputStream(file), 64 * 1024)) {
+	    DataInputStream in = new DataInputStream(new CheckedInputStream(
+		    is, crc));
+	    if (in.readInt() != MAGIC) {
+		throw new IOException(file + " is not a snapshot");
+	    }
+	    int version = in.readInt();
+	    if (version != VERSION) {
+		throw new IOException("snapshot " + file + " has version "
+			+ version + ", expected " + VERSION);
+	    }
+	    long taken = in.readLong();
+	    long journalPosition = in.readLong();
+	    int highestOrderId = in.readInt();
+	    List<String> sellers = readNames(in);
+	    List<String> buyers = readNames(in);
+	    List<OrderState> salesOrders = readOrders(in);
+	    List<OrderState> purchaseOrders = readOrders(in);
+	    int n = in.readInt();
+	    List<MarketPrice> prices = new ArrayList<>(n);
+	    for (int i = 0; i < n; i++) {
+		prices.add(new MarketPrice(in.readUTF(), in.readDouble(),
+			new Date(in.readLong())));
+	    }
+	    n = in.readInt();
+	    List<VolumeWindow> windows = new ArrayList<>(n);
+	    for (int i = 0; i < n; i++) {
+		windows.add(VolumeWindow.read(in));
+	    }
+	    long expected = crc.getValue();
+	    if (new DataInputStream(is).readLong() != expected) {
+		throw new IOException("snapshot " + file + " is corrupt");
+	    }
+	    return new Snapshot(taken, journalPosition, highestOrderId,
+		    sellers, buyers, salesOrders, purchaseOrders, prices,
+		    windows);
+	}
+    }
+
+    private static void writeNames(DataOutputStream out, List<String> names)
+	    throws IOException {
+	out.writeInt(names.size());
+	for (String name : names) {
+	    out.writeUTF(name);
+	}
+    }
+
+    private static List<String> readNames(DataInputStream in)
+	    throws IOException {
+	int n = in.readInt();
+	List<String> names = new ArrayList<>(n);
+	for (int i = 0; i < n; i++) {
+	    names.add(in.readUTF());
+	}
+	return names;
+    }
+
+    private static void writeOrders(DataOutputStream out,
+	    List<OrderState> orders) throws IOException {
+	out.writeInt(orders.size());
+	for (OrderState o : orders) {
+	    out.writeUTF(o.participant);
+	    out.writeUTF(o.productId);
+	    out.writeDouble(o.price);
+	    out.writeInt(o.originalQuantity);
+	    out.writeInt(o.remainingQuantity);
+	    out.writeInt(o.id);
+	    out.writeLong(o.created);
+	}
+    }
+
+    private static List<OrderState> readOrders(DataInputStream in)
+	    throws IOException {
+	int n = in.readInt();
+	List<OrderState> orders = new ArrayList<>(n);
+	for (int i = 0; i < n; i++) {
+	    orders.add(new OrderState(in.readUTF(), in.readUTF(), in
+		    .readDouble(), in.readInt(), in.readInt(), in.readInt(), in
+		    .readLong()));
+	}
+	return orders;
+    }
+
+    /** @return when the snapshot was taken */
+    public long getTaken() {
+	return taken;
+    }
+
+    /** @return the position in the journal from which to replay */
+    public long getJournalPosition() {
+	return journalPosition;
+    }
+
+    public int getHighestOrderId() {
+	return highestOrderId;
+    }
+
+    public List<String> getSellers() {
+	materialize();
+	return sellers;
+    }
+
+    public List<String> getBuyers() {
+	materialize();
+	return buyers;
+    }
+
+    /** @return the resting sales orders, in time priority per price level */
+    public List<OrderState> getSalesOrders() {
+	materialize();
+	return salesOrders;
+    }
+
+    /** @return the resting purchase orders, in time priority per price level */
+    public List<OrderState> getPurchaseOrders() {
+	materialize();
+	return purchaseOrders;
+    }
+
+    public List<MarketPrice> getMarketPrices() {
+	return marketPrices;
+    }
+
+    public List<VolumeWindow> getVolumeWindows() {
+	return volumeWindows;
+    }
+
+    /**
+     * a resting order. the price is the maximum accepted price for purchase
+     * orders, and the participant is the seller or buyer.
+     */
+    public static class OrderState {
+	public final String participant;
+	public final String productId;
+	public final double price;
+	public final int originalQuantity;
+	public final int remainingQuantity;
+	public final int id;
+	public final long created;
+
+	public OrderState(String participant, String productId, double price,
+		int originalQuantity, int remainingQuantity, int id,
+		long created) {
+	    this.participant = participant;
+	    this.productId = productId;
+	    this.price = price;
+	    this.originalQuantity = originalQuantity;
+	    this.remainingQuantity = remainingQuantity;
+	    this.id = id;
+	    this.created = created;
+	}
+    }
+}
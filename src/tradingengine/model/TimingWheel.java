@@ -0,0 +1,215 @@
+package tradingengine.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A hierarchical timing wheel, used to expire orders without scanning all of
+ * them every trading session.
+ *
+ * Level 0 has one slot per millisecond, for the next {@link #WHEEL_SIZE} ms.
+ * Each level above has slots which are {@link #WHEEL_SIZE} times wider, so a
+ * handful of levels cover any realistic timeout. Levels are only created once
+ * something is scheduled that far ahead. When time reaches the start of a
+ * slot on a higher level, its entries are cascaded down into the finer
+ * levels, and they are fired once the level 0 slot they end up in is passed.
+ *
+ * Scheduling and cancelling are O(1). Advancing the clock only touches the
+ * slots which are passed and the entries which are due or cascading.
+ *
+ * Not thread safe - it belongs to the thread running the {@link Market}.
+ */
+public class TimingWheel<T> {
+
+    public static final int WHEEL_SIZE = 64;
+
+    /** each level is an array of sentinels of circular linked lists */
+    private final List<Timeout<T>[]> levels = new ArrayList<>();
+
+    /** everything due before this time has been fired */
+    private long currentTime;
+
+    private int size;
+
+    public TimingWheel(long startTime) {
+	this.currentTime = startTime;
+    }
+
+    /**
+     * @return a handle with which the entry can be cancelled. the item is
+     *         handed out by {@link #advance} once the clock has passed the
+     *         given deadline.
+     */
+    public Timeout<T> schedule(T item, long deadline) {
+	Timeout<T> timeout = new Timeout<>(this, item, deadline);
+	add(timeout);
+	size++;
+	return timeout;
+    }
+
+    /**
+     * moves the clock forward to the given time, handing every item whose
+     * deadline is before that time to the given consumer, earliest first.
+     */
+    public void advance(long now, Consumer<T> onExpiry) {
+	if (size == 0) {
+	    // nothing to fire or cascade, so we can jump straight there
+	    currentTime = Math.max(currentTime, now);
+	    return;
+	}
+	while (currentTime < now && size > 0) {
+	    Timeout<T> slot = slots(0)[slotOf(currentTime)];
+	    while (slot.next != slot) {
+		Timeout<T> timeout = slot.next;
+		timeout.unlink();
+		size--;
+		onExpiry.accept(timeout.item);
+	    }
+	    currentTime++;
+	    cascade();
+	}
+	currentTime = Math.max(currentTime, now);
+    }
+
+    /**
+     * @return the earliest time at which {@link #advance} has something to
+     *         do, ie fire or cascade entries, or Long.MAX_VALUE if nothing is
+     *         scheduled. looks at no more than {@link #WHEEL_SIZE} slots per
+     *         level.
+     */
+    public long nextDeadline() {
+	if (size == 0) {
+	    return Long.MAX_VALUE;
+	}
+	long next = Long.MAX_VALUE;
+	long tick = 1;
+	for (int level = 0; level < levels.size(); level++) {
+	    Timeout<T>[] slots = levels.get(level);
+	    long first = currentTime / tick;
+	    for (long index = first; index < first + WHEEL_SIZE; index++) {
+		Timeout<T> slot = slots[slotOf(index)];
+		if (slot.next != slot) {
+		    // level 0 entries fire once their tick has passed,
+		    // higher ones cascade when their slot starts
+		    long due = level == 0 ? index + 1 : index * tick;
+		    next = Math.min(next, Math.max(due, currentTime + 1));
+		    break;
+		}
+	    }
+	    tick *= WHEEL_SIZE;
+	}
+	return next;
+    }
+
+    /** @return the number of scheduled entries which are not yet due */
+    public int size() {
+	return size;
+    }
+
+    /**
+     * moves the entries of every higher level slot which starts at the
+     * current time down into the finer levels, highest level first, so that
+     * entries can fall through several levels in one go.
+     */
+    private void cascade() {
+	int highest = 0;
+	long tick = 1;
+	while (highest + 1 < levels.size()
+		&& currentTime % (tick * WHEEL_SIZE) == 0) {
+	    highest++;
+	    tick *= WHEEL_SIZE;
+	}
+	for (int level = highest; level > 0; level--) {
+	    Timeout<T> slot = slots(level)[slotOf(currentTime / tick)];
+	    Timeout<T> timeout = slot.next;
+	    slot.next = slot;
+	    slot.prev = slot;
+	    while (timeout != slot) {
+		Timeout<T> next = timeout.next;
+		add(timeout);
+		timeout = next;
+	    }
+	    tick /= WHEEL_SIZE;
+	}
+    }
+
+    /**
+     * puts the entry into the finest level whose slots do not yet wrap around
+     * before its deadline. overdue entries go into the current slot.
+     */
+    private void add(Timeout<T> timeout) {
+	long deadline = Math.max(timeout.deadline, currentTime);
+	long tick = 1;
+	for (int level = 0;; level++) {
+	    if (deadline / tick - currentTime / tick < WHEEL_SIZE) {
+		slots(level)[slotOf(deadline / tick)].append(timeout);
+		return;
+	    }
+	    tick *= WHEEL_SIZE;
+	}
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private Timeout<T>[] slots(int level) {
+	while (levels.size() <= level) {
+	    Timeout<T>[] slots = new Timeout[WHEEL_SIZE];
+	    for (int i = 0; i < WHEEL_SIZE; i++) {
+		slots[i] = new Timeout<>(this, null, 0);
+	    }
+	    levels.add(slots);
+	}
+	return levels.get(level);
+    }
+
+    private static int slotOf(long index) {
+	return (int) (index % WHEEL_SIZE);
+    }
+
+    /** an entry in the wheel, or the sentinel of a slot */
+    public static class Timeout<T> {
+	private final TimingWheel<T> wheel;
+	private final T item;
+	private final long deadline;
+	private Timeout<T> prev = this;
+	private Timeout<T> next = this;
+
+	private Timeout(TimingWheel<T> wheel, T item, long deadline) {
+	    this.wheel = wheel;
+	    this.item = item;
+	    this.deadline = deadline;
+	}
+
+	public T getItem() {
+	    return item;
+	}
+
+	public long getDeadline() {
+	    return deadline;
+	}
+
+	/** @return true if the entry was still scheduled */
+	public boolean cancel() {
+	    if (next == this) {
+		return false;
+	    }
+	    unlink();
+	    wheel.size--;
+	    return true;
+	}
+
+	private void append(Timeout<T> timeout) {
+	    timeout.prev = prev;
+	    timeout.next = this;
+	    prev.next = timeout;
+	    prev = timeout;
+	}
+
+	private void unlink() {
+	    prev.next = next;
+	    next.prev = prev;
+	    prev = this;
+	    next = this;
+	}
+    }
+}
@@ -1,15 +1,23 @@
 package tradingengine.model;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
@@ -18,6 +26,10 @@ import javax.sql.DataSource;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import tradingengine.model.EngineMetrics.Phase;
+import tradingengine.model.Market.MarketInfo;
+import tradingengine.model.OrderBook.PriceLevel;
+
 // /////////////////////////////////////////////////
 // this file contains all classes related to a trading
 // engine which uses a market to simulate a trading platform.
@@ -28,25 +40,91 @@ public class TradingEngine {
 
     public static interface Listener {
 	public void onEvent(EventType type, Object data);
+
+	/**
+	 * handles all events of a trading session at once, in the order they
+	 * were raised. by default, hands them to {@link #onEvent} one by one.
+	 */
+	public default void onEvents(List<Event> events) {
+	    for (Event event : events) {
+		onEvent(event.getType(), event.getData());
+	    }
+	}
     }
 
+    public static class Event {
+	private final EventType type;
+	private final Object data;
+
+	public Event(EventType type, Object data) {
+	    this.type = type;
+	    this.data = data;
+	}
+
+	public EventType getType() {
+	    return type;
+	}
+
+	public Object getData() {
+	    return data;
+	}
+    }
+
+    /**
+     * what happened to an order. a SALE or PURCHASE carries the {@link Sale},
+     * with the remaining quantities of its orders as of the sale. timeouts
+     * and cancels carry the order, which has left the market and no longer
+     * changes. amendments carry the {@link OrderChange} as it was applied,
+     * since the amended order stays in the market and may be filled before
+     * an async listener sees the event. STATS carries the market prices and
+     * the volume windows, by product id; see {@link #requestMarketInfo} for
+     * the resting orders.
+     */
     public static enum EventType {
-	SALE, PURCHASE, TIMEOUT_SALESORDER, TIMEOUT_PURCHASEORDER, STATS, STOPPED
+	SALE, PURCHASE, TIMEOUT_SALESORDER, TIMEOUT_PURCHASEORDER, STATS, STOPPED,
+	CANCELLED_SALESORDER, CANCELLED_PURCHASEORDER, AMENDED_SALESORDER,
+	AMENDED_PURCHASEORDER
     }
 
-    private Market market = new Market();
+    private Market market;
     private Map<String, MarketPrice> marketPrices = new HashMap<>();
-    private Map<String, List<VolumeRecord>> volumeRecords = new HashMap<>();
+    private Map<String, VolumeWindow> volumeWindows = new ConcurrentHashMap<>();
     private InitialContext ctx = new InitialContext();
-    private Map<Seller, List<SalesOrder>> newSalesOrders = new HashMap<>();
-    private Map<Buyer, List<PurchaseOrder>> newPurchaseOrders = new HashMap<>();
+    private DataSource dataSource;
+    private SaleWriter saleWriter;
+    private int persistQueueCapacity = SaleWriter.DEFAULT_CAPACITY;
+    private int persistBatchSize = SaleWriter.DEFAULT_BATCH_SIZE;
+    private long persistLingerMs = SaleWriter.DEFAULT_LINGER_MS;
+    private Journal journal;
+    private int highestOrderId = -1;
+    private Path snapshotFile;
+    private long snapshotInterval;
+    private long lastSnapshot;
+    private ExecutorService snapshotWriter;
+    private Future<?> pendingSnapshot;
+    private OrderRing newOrders = new OrderRing(OrderRing.DEFAULT_CAPACITY);
+
+    // work handed to the engine's thread, see execute
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // the engines which took over products from this one, see moveProduct
+    private final Map<String, TradingEngine> movedProducts = new HashMap<>();
+    private final Map<String, LongAdder> orderCounts = new ConcurrentHashMap<>();
+    private volatile long busyNanos;
+    private final EngineMetrics metrics = new EngineMetrics();
 
     private long delay;
 
     private long timeout;
 
     private Listener listener;
-    private boolean running = true;
+    private volatile boolean running = true;
+    private List<Event> events = new ArrayList<>();
+    // the sales of the current session, reused since they are copied when
+    // they are persisted
+    private final List<Sale> sessionSales = new ArrayList<>();
+    private EventDispatcher eventDispatcher;
+    private int eventQueueCapacity;
+    private WaitStrategy waitStrategy;
 
     /**
      * if false, then runs in an infinite loop until {@link #stop()} is called.
@@ -85,6 +163,8 @@ public class TradingEngine {
 	this.timeout = timeout;
 	this.listener = listener;
 	this.runInActorMode = runInActorMode;
+	this.market = new Market(timeout);
+	this.waitStrategy = new WaitStrategy.FixedInterval(delay);
 	LOGGER.debug("market is opening for trading!");
     }
 
@@ -93,29 +173,47 @@ public class TradingEngine {
 	while (running) {
 	    LOGGER.debug("\n\n------------------------------- trading...-------------------------");
 	    long start = System.currentTimeMillis();
+	    long startNanos = System.nanoTime();
 
 	    prepareMarket();
 
-	    List<Sale> sales = market.trade();
+	    long tradeNanos = System.nanoTime();
+	    List<Sale> sales = sessionSales;
+	    sales.clear();
+	    market.trade(sales);
 	    LOGGER.info("trading completed");
+	    long recordNanos = System.nanoTime();
+	    metrics.record(Phase.TRADE, recordNanos - tradeNanos);
+	    metrics.sales(sales.size());
+
+	    if (journal != null) {
+		for (int i = 0; i < sales.size(); i++) {
+		    journal.filled(sales.get(i));
+		}
+		journal.commit();
+	    }
 
 	    noteMarketPricesAndVolumes(sales);
+	    snapshotIfDue(start);
 
+	    long persistNanos = System.nanoTime();
+	    metrics.record(Phase.RECORD, persistNanos - recordNanos);
 	    try {
 		persistSale(sales);
 	    } catch (Exception e) {
 		LOGGER.error("failed to persist sales: " + sales, e);
 	    }
-	    LOGGER.info("persisting completed, notifying involved parties...");
-	    sales.stream().forEach(sale -> {
-		if (sale.getBuyer().listener != null)
-		    sale.getBuyer().listener.onEvent(EventType.PURCHASE, sale);
-		if (sale.getSeller().listener != null)
-		    sale.getSeller().listener.onEvent(EventType.SALE, sale);
-	    });
+	    long notifyNanos = System.nanoTime();
+	    metrics.record(Phase.PERSIST, notifyNanos - persistNanos);
+	    LOGGER.info("persisting queued, notifying involved parties...");
+	    for (int i = 0; i < sales.size(); i++) {
+		Sale sale = sales.get(i);
+		raise(sale.getBuyer().listener, EventType.PURCHASE, sale);
+		raise(sale.getSeller().listener, EventType.SALE, sale);
+	    }
 	    if (!sales.isEmpty()) {
 		LOGGER.warn("trading of " + sales.size()
-			+ " sales completed and persisted in "
+			+ " sales completed and queued for persisting in "
 			+ (System.currentTimeMillis() - start) + "ms");
 	    } else {
 		LOGGER.info("no trades...");
@@ -123,14 +221,27 @@ public class TradingEngine {
 
 	    // debug(self.market, 10, false);
 	    if (listener != null)
-		this.updateMarketVolume(null); // removes outdated data
-	    listener.onEvent(EventType.STATS,
-		    new Object[] { market.getMarketInfo(), this.marketPrices,
-			    this.volumeRecords });
-	    try {
-		Thread.sleep(delay);
-	    } catch (InterruptedException e) {
-		e.printStackTrace();
+		this.expireMarketVolumes(); // removes outdated data
+	    // prices are replaced while trading, so a listener on another
+	    // thread needs a copy. volume windows can be read from any thread
+	    raise(listener, EventType.STATS, new Object[] {
+		    eventQueueCapacity == 0 ? this.marketPrices : new HashMap<>(
+			    this.marketPrices), this.volumeWindows });
+	    flushEvents();
+	    long endNanos = System.nanoTime();
+	    metrics.record(Phase.NOTIFY, endNanos - notifyNanos);
+	    metrics.record(Phase.SESSION, endNanos - startNanos);
+	    noteRestingOrders();
+	    busyNanos += endNanos - startNanos;
+
+	    // wait for new orders, but wake up for the next expiry, and for
+	    // the next bucket while there are volumes, so that they keep up
+	    // in the stats. an idle engine without either parks until signalled
+	    long deadline = Math.min(market.getNextExpiry(),
+		    nextVolumeExpiry(System.currentTimeMillis()));
+	    waitStrategy.await(this::hasWork, deadline);
+	    if (Thread.interrupted()) {
+		LOGGER.warn("interrupted while waiting for the next session");
 	    }
 
 	    if (runInActorMode) {
@@ -138,31 +249,270 @@ public class TradingEngine {
 	    }
 	}
 
-	listener.onEvent(EventType.STOPPED, null);
+	if (!running && snapshotWriter != null) {
+	    snapshotWriter.shutdown();
+	    try {
+		snapshotWriter.awaitTermination(10, TimeUnit.SECONDS);
+	    } catch (InterruptedException e) {
+		LOGGER.warn("interrupted while writing the last snapshot", e);
+		Thread.currentThread().interrupt();
+	    }
+	}
+	if (!running && journal != null) {
+	    try {
+		journal.close();
+	    } catch (IOException e) {
+		LOGGER.error("failed to close journal " + journal.getFile(), e);
+	    }
+	}
+	if (!running && saleWriter != null) {
+	    try {
+		saleWriter.close(delay + persistLingerMs + 1000);
+	    } catch (InterruptedException e) {
+		LOGGER.warn("interrupted while persisting the last sales", e);
+		Thread.currentThread().interrupt();
+	    }
+	}
+
+	raise(listener, EventType.STOPPED, null);
+	flushEvents();
+	if (!running && eventDispatcher != null) {
+	    try {
+		eventDispatcher.close(1000);
+	    } catch (InterruptedException e) {
+		LOGGER.warn("interrupted while delivering the last events", e);
+		Thread.currentThread().interrupt();
+	    }
+	}
+    }
+
+    /**
+     * collects an event for the engine's listener, to be delivered with all
+     * others at the end of the trading session. events for other listeners
+     * are delivered straight away.
+     */
+    private void raise(Listener target, EventType type, Object data) {
+	if (target == null) {
+	    return;
+	} else if (target == listener) {
+	    events.add(new Event(type, data));
+	} else {
+	    target.onEvent(type, data);
+	}
+    }
+
+    /** delivers the events of the trading session to the listener */
+    private void flushEvents() {
+	if (events.isEmpty()) {
+	    return;
+	}
+	List<Event> batch = events;
+	events = new ArrayList<>();
+	if (eventQueueCapacity == 0) {
+	    listener.onEvents(batch);
+	    return;
+	}
+	try {
+	    if (eventDispatcher == null) {
+		eventDispatcher = new EventDispatcher(Thread.currentThread()
+			.getName() + "-events", listener, eventQueueCapacity);
+		eventDispatcher.start();
+	    }
+	    eventDispatcher.dispatch(batch);
+	} catch (InterruptedException e) {
+	    LOGGER.warn("interrupted while queueing events, delivering them "
+		    + "directly", e);
+	    Thread.currentThread().interrupt();
+	    listener.onEvents(batch);
+	}
     }
 
     public void stop() {
 	this.running = false;
+	this.waitStrategy.signal();
+    }
+
+    private boolean hasWork() {
+	return !running || newOrders.size() > 0 || !tasks.isEmpty();
+    }
+
+    /**
+     * has the events delivered to the listener on a thread of its own, see
+     * {@link EventDispatcher}, instead of on the engine's thread. must be
+     * called before the engine is run.
+     * 
+     * @param queueCapacity
+     *            the number of trading sessions whose events may wait to be
+     *            delivered before the engine has to wait for the listener
+     */
+    public void dispatchEventsAsync(int queueCapacity) {
+	this.eventQueueCapacity = queueCapacity;
+    }
+
+    /**
+     * sets how the engine waits between trading sessions. by default, it
+     * sleeps the delay it was created with. must be called before the engine
+     * is run.
+     */
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+	this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * sets the number of new orders which can wait for the next trading
+     * session in thread mode, before {@link #addPurchaseOrder} and
+     * {@link #addSalesOrder} have to wait. must be called before any orders
+     * are added.
+     */
+    public void configureIngress(int capacity) {
+	this.newOrders = new OrderRing(capacity);
+    }
+
+    /**
+     * sets up the write-behind persistence of sales, see {@link SaleWriter}.
+     * must be called before the engine is run.
+     * 
+     * @param queueCapacity
+     *            the number of sales which may wait to be written before the
+     *            engine has to wait for the database
+     * @param batchSize
+     *            the maximum number of sales per JDBC batch
+     * @param lingerMs
+     *            how long to wait for a batch to fill up
+     */
+    public void configurePersistence(int queueCapacity, int batchSize,
+	    long lingerMs) {
+	this.persistQueueCapacity = queueCapacity;
+	this.persistBatchSize = batchSize;
+	this.persistLingerMs = lingerMs;
+    }
+
+    /**
+     * sets the DataSource to persist sales to, instead of looking up
+     * java:comp/env/jdbc/mysql. must be called before the engine is run.
+     */
+    public void setDataSource(DataSource dataSource) {
+	this.dataSource = dataSource;
+    }
+
+    /**
+     * rebuilds the market from the given journal file, which is created if it
+     * does not exist yet, and records all changes to the resting orders in it
+     * from then on. must be called before the engine is run.
+     */
+    public void openJournal(Path file) throws IOException {
+	openJournal(file, null, 0);
+    }
+
+    /**
+     * like {@link #openJournal(Path)}, but also writes a {@link Snapshot} of
+     * the market to the given file every snapshotInterval ms, in the
+     * background. recovery then starts from the snapshot, if there is one, and
+     * only replays the part of the journal written after it.
+     */
+    public void openJournal(Path journalFile, Path snapshotFile,
+	    long snapshotInterval) throws IOException {
+	long start = System.currentTimeMillis();
+	Journal journal = new Journal(journalFile);
+	Recovery recovery = new Recovery();
+	long from = 0;
+	if (snapshotFile != null && Files.exists(snapshotFile)) {
+	    try {
+		Snapshot snapshot = Snapshot.read(snapshotFile);
+		recovery.restore(snapshot);
+		from = snapshot.getJournalPosition();
+	    } catch (IOException e) {
+		LOGGER.warn("failed to read snapshot " + snapshotFile
+			+ ", replaying the whole journal instead", e);
+		recovery = new Recovery();
+		Market fresh = new Market(timeout);
+		fresh.setMatchingMode(market.getMatchingMode());
+		fresh.setTradingPool(market.getTradingPool());
+		this.market = fresh;
+		this.marketPrices.clear();
+		this.volumeWindows.clear();
+		highestOrderId = -1;
+	    }
+	}
+	journal.replay(from, recovery);
+	LOGGER.info("recovered " + market.getBuyers().size() + " buyers and "
+		+ market.getSellers().size() + " sellers from " + journalFile
+		+ " in " + (System.currentTimeMillis() - start) + "ms");
+	this.journal = journal;
+
+	if (snapshotFile != null) {
+	    this.snapshotFile = snapshotFile;
+	    this.snapshotInterval = snapshotInterval;
+	    this.lastSnapshot = start;
+	    this.snapshotWriter = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, snapshotFile.getFileName()
+			+ "-writer");
+		t.setDaemon(true);
+		return t;
+	    });
+	}
+    }
+
+    /**
+     * takes a view of the market, if the last snapshot is old enough, and has
+     * it written in the background. skipped while the last one is still being
+     * written.
+     */
+    private void snapshotIfDue(long now) {
+	if (snapshotWriter == null || now - lastSnapshot < snapshotInterval
+		|| (pendingSnapshot != null && !pendingSnapshot.isDone())) {
+	    return;
+	}
+	lastSnapshot = now;
+	long startNanos = System.nanoTime();
+	Snapshot snapshot = Snapshot.capture(market, marketPrices,
+		volumeWindows, journal.getPosition(), highestOrderId);
+	metrics.record(Phase.SNAPSHOT, System.nanoTime() - startNanos);
+	pendingSnapshot = snapshotWriter.submit(() -> {
+	    try {
+		snapshot.write(snapshotFile);
+	    } catch (IOException | RuntimeException e) {
+		LOGGER.error("failed to write snapshot " + snapshotFile, e);
+	    }
+	});
+    }
+
+    /**
+     * @return the highest order id which the engine has seen, including the
+     *         recovered ones, so that new orders can be given higher ones, or
+     *         -1 if none
+     */
+    public int getHighestOrderId() {
+	return highestOrderId;
+    }
+
+    /** @return the writer persisting sales, or null if none were made yet */
+    public SaleWriter getSaleWriter() {
+	return saleWriter;
+    }
+
+    /** see {@link Market.MatchingMode}, defaults to cheapest seller */
+    public void setMatchingMode(Market.MatchingMode matchingMode) {
+	this.market.setMatchingMode(matchingMode);
+    }
+
+    /**
+     * trades the products in parallel on the given pool, see
+     * {@link Market#setTradingPool}
+     */
+    public void setTradingPool(ForkJoinPool tradingPool) {
+	this.market.setTradingPool(tradingPool);
     }
 
     /**
      * @method @return a VolumeRecord, just with no timestamp. properties are
-     *         total in last minute.
+     *         total in the last {@link VolumeWindow#WINDOW_MS} ms, as of the
+     *         last trading session.
      */
     public VolumeRecord getCurrentVolume(String productId) {
-	List<VolumeRecord> vrs = this.volumeRecords.get(productId);
-	if (vrs != null) {
-	    long now = System.currentTimeMillis();
-	    vrs = vrs.stream().filter(vr -> {
-		return now - vr.timestamp.getTime() < 1000 * 10;
-	    }).collect(Collectors.toList()); // remove old
-	    this.volumeRecords.put(productId, vrs); // ensure records contains
-						    // most up to date
-
-	    // aggregate
-	    VolumeRecord vr = new VolumeRecord(productId, 0, 0, null, 0);
-	    vr = vrs.stream().reduce(vr, VolumeRecord::add);
-	    return vr;
+	VolumeWindow window = this.volumeWindows.get(productId);
+	if (window != null) {
+	    return window.toVolumeRecord();
 	} else {
 	    return new VolumeRecord(productId, 0, 0, null, 0);
 	}
@@ -175,117 +525,79 @@ public class TradingEngine {
 
     // handles timed out orders
     private void prepareMarket() {
+	long startNanos = System.nanoTime();
+	long now = System.currentTimeMillis();
 
 	// handle timeouted sales orders
-	market.getSellers().forEach(
-		seller -> {
-		    List<SalesOrder> incompleteSOs = seller
-			    .removeOutdatedSalesOrders(timeout);
-		    incompleteSOs.forEach(so -> {
-			if (so.getSeller().listener != null)
-			    so.getSeller().listener.onEvent(
-				    EventType.TIMEOUT_SALESORDER, so);
-			else
-			    LOGGER.debug("incomplete SO: " + so);
-		    });
-		});
+	market.expireSalesOrders(now).forEach(so -> {
+	    if (journal != null)
+		journal.salesOrderExpired(so);
+	    if (so.getSeller().listener != null)
+		raise(so.getSeller().listener, EventType.TIMEOUT_SALESORDER,
+			so);
+	    else
+		LOGGER.debug("incomplete SO: " + so);
+	});
 
 	// handle timeouted purchase orders
-	market.getBuyers().forEach(
-		buyer -> {
-		    List<PurchaseOrder> incompletePOs = buyer
-			    .removeOutdatedPurchaseOrders(timeout);
-		    incompletePOs.forEach(po -> {
-			if (po.getBuyer().listener != null)
-			    po.getBuyer().listener.onEvent(
-				    EventType.TIMEOUT_PURCHASEORDER, po);
-			else
-			    LOGGER.debug("incomplete PO: " + po);
-		    });
-		});
+	market.expirePurchaseOrders(now).forEach(po -> {
+	    if (journal != null)
+		journal.purchaseOrderExpired(po);
+	    if (po.getBuyer().listener != null)
+		raise(po.getBuyer().listener, EventType.TIMEOUT_PURCHASEORDER,
+			po);
+	    else
+		LOGGER.debug("incomplete PO: " + po);
+	});
+
+	long ingestNanos = System.nanoTime();
+	metrics.record(Phase.EXPIRE, ingestNanos - startNanos);
+
+	// do what other threads asked for, eg take over a product, before
+	// any new orders, since those may depend on it
+	for (Runnable task; (task = tasks.poll()) != null;) {
+	    task.run();
+	}
 
 	if (!runInActorMode) {
-	    // add new SOs and POs
-	    synchronized (newSalesOrders) {
-		newSalesOrders.forEach((seller, sos) -> {
-		    if (!this.market.getSellers().contains(seller)) {
-			LOGGER.debug("seller named " + seller.getName()
-				+ " doesnt exist -> adding a new one");
-			this.market.addSeller(seller);
-			seller.listener = listener;
-		    } else {
-			// swap temp seller with the actual one in the market
-			seller = this.market.getSellers().get(
-				this.market.getSellers().indexOf(seller));
-		    }
-		    final Seller fSeller = seller;
-		    sos.forEach(so -> {
-			fSeller.addSalesOrder(so);
-		    });
-		});
-		newSalesOrders.clear();
-	    }
-
-	    synchronized (newPurchaseOrders) {
-		newPurchaseOrders.forEach((buyer, pos) -> {
-		    if (!this.market.getBuyers().contains(buyer)) {
-			LOGGER.debug("buyer named " + buyer.getName()
-				+ " doesnt exist -> adding a new one");
-			this.market.addBuyer(buyer);
-			buyer.listener = listener;
-		    } else {
-			// swap temp buyer with the actual one in the market
-			buyer = this.market.getBuyers().get(
-				this.market.getBuyers().indexOf(buyer));
-		    }
-		    final Buyer fBuyer = buyer;
-		    pos.forEach(po -> {
-			fBuyer.addPurchaseOrder(po);
-		    });
-		});
-		newPurchaseOrders.clear();
-	    }
+	    // add new SOs and POs, in the order they arrived
+	    newOrders.drain(newOrders.getCapacity(), this::acceptOrder);
 	}
+	metrics.record(Phase.INGEST, System.nanoTime() - ingestNanos);
+    }
+
+    private void noteRestingOrders() {
+	int salesOrders = 0;
+	int purchaseOrders = 0;
+	for (OrderBook book : market.getOrderBooks()) {
+	    salesOrders += book.getSalesOrderCount();
+	    purchaseOrders += book.getPurchaseOrderCount();
+	}
+	metrics.resting(salesOrders, purchaseOrders);
     }
 
     private void persistSale(List<Sale> sales) throws Exception {
 	if (!sales.isEmpty()) {
 	    LOGGER.info("preparing to persist sales");
-
-	    DataSource ds = (DataSource) ctx.lookup("java:comp/env/jdbc/mysql");
-	    try (Connection c = ds.getConnection()) {
-		PreparedStatement stmt = c
-			.prepareStatement("INSERT INTO SALES (BUYER_NAME, SELLER_NAME, PRODUCT_ID, PRICE, QUANTITY, PO_ID, SO_ID) "
-				+ "values (?, ?, ?, ?, ?, ?, ?)");
-		sales.forEach(sale -> {
-		    try {
-			int i = 1;
-			stmt.setString(i++, sale.getBuyer().getName());
-			stmt.setString(i++, sale.getSeller().getName());
-			stmt.setInt(i++, Integer.parseInt(sale.getProductId()));
-			stmt.setDouble(i++, sale.getPrice());
-			stmt.setInt(i++, sale.getQuantity());
-			stmt.setInt(i++, sale.getPurchaseOrder().getId());
-			stmt.setInt(i++, sale.getSalesOrder().getId());
-			if (stmt.execute()) {
-			    ResultSet rs = stmt.getGeneratedKeys();
-			    rs.next();
-			    sale.setId(rs.getInt(1));
-			    rs.close();
-			}
-		    } catch (SQLException e) {
-			throw new RuntimeException(e);
-		    }
-		});
+	    if (saleWriter == null) {
+		if (dataSource == null) {
+		    dataSource = (DataSource) ctx
+			    .lookup("java:comp/env/jdbc/mysql");
+		}
+		saleWriter = new SaleWriter(Thread.currentThread().getName()
+			+ "-sale-writer", dataSource, persistQueueCapacity,
+			persistBatchSize, persistLingerMs);
+		saleWriter.start();
 	    }
+	    saleWriter.enqueue(sales);
 	}
     }
 
     private void noteMarketPricesAndVolumes(List<Sale> sales) {
-	sales.forEach(sale -> {
-	    updateMarketPrice(sale);
-	    updateMarketVolume(sale);
-	});
+	for (int i = 0; i < sales.size(); i++) {
+	    updateMarketPrice(sales.get(i));
+	    updateMarketVolume(sales.get(i));
+	}
     }
 
     public static class MarketPrice {
@@ -316,7 +628,7 @@ public class TradingEngine {
 	MarketPrice mp = marketPrices.get(sale.getProductId());
 	if (mp == null
 		|| (mp != null && mp.getTimestamp().getTime() < sale
-			.getTimestamp().getTime())) {
+			.getTime())) {
 	    // set price if none is known, or replace price if its older than
 	    // current price
 	    marketPrices.put(
@@ -359,67 +671,55 @@ public class TradingEngine {
     }
 
     private void updateMarketVolume(Sale sale) {
-	// //////////////
-	// remove old ones
-	// //////////////
-	Map<String, List<VolumeRecord>> newVolumeRecords = new HashMap<>();
-	long now = System.currentTimeMillis();
-	volumeRecords.forEach((k, v) -> {
-	    List<VolumeRecord> vrs = v.stream().filter(vr -> {
-		return now - vr.timestamp.getTime() < 1000 * 10;
-	    }).collect(Collectors.toList()); // remove older than 10 secs
-		newVolumeRecords.put(k, vrs);
-	    });
-	volumeRecords = newVolumeRecords; // replace the old ones
+	getOrCreateVolumeWindow(sale.getProductId()).add(
+		sale.getTime(), sale.getQuantity(),
+		sale.getQuantity() * sale.getPrice());
+    }
+
+    private VolumeWindow getOrCreateVolumeWindow(String productId) {
+	VolumeWindow window = volumeWindows.get(productId);
+	if (window == null) {
+	    window = new VolumeWindow(productId, System.currentTimeMillis());
+	    volumeWindows.put(productId, window);
+	}
+	return window;
+    }
 
-	// //////////////
-	// add new data
-	// //////////////
-	if (sale != null) {
-	    List<VolumeRecord> vrs = volumeRecords.get(sale.getProductId());
-	    if (vrs == null) {
-		vrs = new ArrayList<>();
+    /**
+     * @return when the oldest bucket of a volume window drops out next, or
+     *         Long.MAX_VALUE if all windows are empty
+     */
+    private long nextVolumeExpiry(long now) {
+	long bucket = VolumeWindow.BUCKET_MS;
+	for (VolumeWindow window : volumeWindows.values()) {
+	    if (window.getCount() > 0) {
+		return (now / bucket + 1) * bucket;
 	    }
-	    vrs.add(new VolumeRecord(sale.getProductId(), sale.getQuantity(),
-		    sale.getQuantity() * sale.getPrice(), sale.getTimestamp(),
-		    1)); // scale up to "per minute"
-	    volumeRecords.put(sale.getProductId(), vrs); // replace with old one
 	}
+	return Long.MAX_VALUE;
+    }
+
+    private void expireMarketVolumes() {
+	long now = System.currentTimeMillis();
+	volumeWindows.values().forEach(window -> {
+	    window.expire(now);
+	});
     }
 
     public PurchaseOrder addPurchaseOrder(String who, String productId,
 	    int quantity, int id) {
 
 	if (runInActorMode) {
-	    Buyer buyer = new Buyer(who);
-	    if (!this.market.getBuyers().contains(buyer)) {
-		LOGGER.debug("buyer named " + who
-			+ " doesnt exist -> adding a new one");
-		this.market.addBuyer(buyer);
-		buyer.listener = listener;
-	    } else {
-		// swap temp buyer with the actual one in the market
-		buyer = this.market.getBuyers().get(
-			this.market.getBuyers().indexOf(buyer));
-	    }
 	    PurchaseOrder po = new PurchaseOrder(productId, quantity, 9999.9,
 		    id);
-	    buyer.addPurchaseOrder(po);
+	    acceptPurchaseOrder(getOrAddBuyer(who), po);
 	    return po;
 	} else {
-	    synchronized (newPurchaseOrders) {
-		Buyer b = new Buyer(who);
-		List<PurchaseOrder> pos = newPurchaseOrders.get(b);
-		if (pos == null) {
-		    pos = new ArrayList<>();
-		    newPurchaseOrders.put(b, pos);
-		}
-		PurchaseOrder po = new PurchaseOrder(productId, quantity,
-			9999.9, id);
-		pos.add(po);
-		return po;
-	    }
-
+	    PurchaseOrder po = new PurchaseOrder(productId, quantity, 9999.9,
+		    id);
+	    newOrders.publish(who, po);
+	    waitStrategy.signal();
+	    return po;
 	}
     }
 
@@ -427,31 +727,422 @@ public class TradingEngine {
 	    double price, int id) {
 
 	if (runInActorMode) {
-	    Seller seller = new Seller(who);
-	    if (!this.market.getSellers().contains(seller)) {
-		LOGGER.debug("seller named " + who
-			+ " doesnt exist -> adding a new one");
-		this.market.addSeller(seller);
-		seller.listener = listener;
-	    } else {
-		// swap temp seller with the actual one in the market
-		seller = this.market.getSellers().get(
-			this.market.getSellers().indexOf(seller));
-	    }
 	    SalesOrder so = new SalesOrder(price, productId, quantity, id);
-	    seller.addSalesOrder(so);
+	    acceptSalesOrder(getOrAddSeller(who), so);
 	    return so;
 	} else {
-	    synchronized (newSalesOrders) {
-		Seller s = new Seller(who);
-		List<SalesOrder> sos = newSalesOrders.get(s);
-		if (sos == null) {
-		    sos = new ArrayList<>();
-		    newSalesOrders.put(s, sos);
+	    SalesOrder so = new SalesOrder(price, productId, quantity, id);
+	    newOrders.publish(who, so);
+	    waitStrategy.signal();
+	    return so;
+	}
+    }
+
+    /**
+     * adds all orders of the batch, as if they were added one by one with
+     * {@link #addSalesOrder} and {@link #addPurchaseOrder}, but in one go.
+     */
+    public void addOrders(OrderBatch batch) {
+	if (runInActorMode) {
+	    for (int i = 0; i < batch.size(); i++) {
+		acceptOrder(batch.getParticipant(i), batch.getOrder(i));
+	    }
+	} else {
+	    newOrders.publish(batch);
+	    waitStrategy.signal();
+	}
+    }
+
+    /**
+     * cancels the resting order with the given id, if the named seller or
+     * buyer placed it, at the next trading session at the latest. the
+     * order's owner gets a CANCELLED_SALESORDER or CANCELLED_PURCHASEORDER
+     * event, unless the order was filled or timed out in the meantime.
+     */
+    public void cancelOrder(String who, String productId, int id) {
+	changeOrder(OrderChange.cancel(who, productId, id));
+    }
+
+    /**
+     * changes the remaining quantity and price of the resting order with the
+     * given id, see {@link Market#amendSalesOrder}, like
+     * {@link #cancelOrder}. the owner gets an AMENDED_SALESORDER or
+     * AMENDED_PURCHASEORDER event with the amended order.
+     * 
+     * @param price
+     *            the new price, or maximum accepted price, or NaN to keep it
+     */
+    public void amendOrder(String who, String productId, int id,
+	    int quantity, double price) {
+	changeOrder(OrderChange.amend(who, productId, id, quantity, price));
+    }
+
+    /** applies the cancel or amendment, see {@link #cancelOrder} */
+    public void changeOrder(OrderChange change) {
+	if (runInActorMode) {
+	    acceptOrder(change.getParticipant(), change);
+	} else {
+	    newOrders.publish(change);
+	    waitStrategy.signal();
+	}
+    }
+
+    /**
+     * runs the task on the engine's thread, before its next trading session.
+     * may be called from any thread.
+     */
+    public void execute(Runnable task) {
+	tasks.add(task);
+	waitStrategy.signal();
+    }
+
+    /**
+     * hands the {@link MarketInfo} to the consumer, on the engine's thread
+     * before its next trading session. it is only built when asked for, so
+     * the sessions do not pay for it. may be called from any thread.
+     */
+    public void requestMarketInfo(Consumer<MarketInfo> consumer) {
+	execute(() -> consumer.accept(market.getMarketInfo()));
+    }
+
+    /**
+     * moves the order book, market price and volume of the product to the
+     * other engine, between two trading sessions of this one. orders for the
+     * product which still reach this engine afterwards are forwarded. the
+     * other engine takes over the product before it accepts any order which
+     * reaches it after that, so no order is lost or matched twice. may be
+     * called from any thread.
+     * 
+     * @param onMoved
+     *            run on this engine's thread once the other engine is sure
+     *            to get the product first, eg to route new orders there
+     * @throws IllegalStateException
+     *             if either engine journals, since a journal only ever holds
+     *             the orders of its own engine
+     */
+    public void moveProduct(String productId, TradingEngine target,
+	    Runnable onMoved) {
+	if (journal != null || target.journal != null) {
+	    throw new IllegalStateException(
+		    "products cannot be moved between journaling engines");
+	}
+	execute(() -> {
+	    OrderBook book = market.removeOrderBook(productId);
+	    MarketPrice price = marketPrices.remove(productId);
+	    VolumeWindow window = volumeWindows.remove(productId);
+	    movedProducts.put(productId, target);
+	    target.execute(() -> target.takeProduct(productId, book, price,
+		    window));
+	    onMoved.run();
+	});
+    }
+
+    /** takes over a product from another engine, see moveProduct */
+    private void takeProduct(String productId, OrderBook book,
+	    MarketPrice price, VolumeWindow window) {
+	movedProducts.remove(productId);
+	if (book != null) {
+	    // in priority order, so that the orders keep their priority
+	    for (PriceLevel<SalesOrder> level : book.getAskLevels()) {
+		for (SalesOrder so : level.getOrders()) {
+		    market.addSalesOrder(getOrAddSeller(so.getSeller()
+			    .getName()), so);
+		}
+	    }
+	    for (PriceLevel<PurchaseOrder> level : book.getBidLevels()) {
+		for (PurchaseOrder po : level.getOrders()) {
+		    market.addPurchaseOrder(getOrAddBuyer(po.getBuyer()
+			    .getName()), po);
+		}
+	    }
+	}
+	if (price != null) {
+	    marketPrices.put(productId, price);
+	}
+	if (window != null) {
+	    volumeWindows.put(productId, window);
+	}
+	LOGGER.info("took over product " + productId);
+    }
+
+    /**
+     * @return the number of orders accepted so far for each product, which
+     *         may be read from any thread
+     */
+    public Map<String, LongAdder> getOrderCounts() {
+	return orderCounts;
+    }
+
+    /** @return what the engine did so far, see {@link EngineMetrics} */
+    public EngineMetrics getMetrics() {
+	return metrics;
+    }
+
+    /**
+     * @return roughly the number of new orders waiting for the next session,
+     *         always 0 in actor mode, where they wait in the actor's mailbox
+     */
+    public int getIngressDepth() {
+	return runInActorMode ? 0 : newOrders.size();
+    }
+
+    /** @return the time spent in trading sessions so far, in nanoseconds */
+    public long getBusyNanos() {
+	return busyNanos;
+    }
+
+    /**
+     * accepts an order, or an {@link OrderChange}, which came through the
+     * {@link OrderRing}
+     */
+    private void acceptOrder(String who, Object order) {
+	String productId;
+	if (order instanceof SalesOrder) {
+	    productId = ((SalesOrder) order).getProductId();
+	} else if (order instanceof PurchaseOrder) {
+	    productId = ((PurchaseOrder) order).getProductId();
+	} else {
+	    productId = ((OrderChange) order).getProductId();
+	}
+	if (!movedProducts.isEmpty()) {
+	    TradingEngine owner = movedProducts.get(productId);
+	    if (owner != null) {
+		// routed here before the product moved
+		owner.execute(() -> owner.acceptOrder(who, order));
+		return;
+	    }
+	}
+	if (order instanceof OrderChange) {
+	    applyChange(who, (OrderChange) order);
+	    return;
+	}
+	orderCounts.computeIfAbsent(productId, p -> new LongAdder())
+		.increment();
+	if (order instanceof SalesOrder) {
+	    acceptSalesOrder(getOrAddSeller(who), (SalesOrder) order);
+	} else {
+	    acceptPurchaseOrder(getOrAddBuyer(who), (PurchaseOrder) order);
+	}
+    }
+
+    private void acceptSalesOrder(Seller seller, SalesOrder so) {
+	this.market.addSalesOrder(seller, so);
+	metrics.ordersIngested(1);
+	highestOrderId = Math.max(highestOrderId, so.getId());
+	if (journal != null)
+	    journal.salesOrderAccepted(so);
+    }
+
+    private void acceptPurchaseOrder(Buyer buyer, PurchaseOrder po) {
+	this.market.addPurchaseOrder(buyer, po);
+	metrics.ordersIngested(1);
+	highestOrderId = Math.max(highestOrderId, po.getId());
+	if (journal != null)
+	    journal.purchaseOrderAccepted(po);
+    }
+
+    /**
+     * finds the order by its id, and cancels or amends it, if it belongs to
+     * the participant. orders which are no longer in the market are left
+     * alone, since they were filled or timed out, and their owner was told.
+     */
+    private void applyChange(String who, OrderChange change) {
+	int id = change.getOrderId();
+	SalesOrder so = market.getSalesOrder(id);
+	if (so != null && so.getSeller().getName().equals(who)) {
+	    if (change.isCancel()) {
+		market.removeSalesOrder(so);
+		if (journal != null)
+		    journal.salesOrderExpired(so);
+		raise(so.getSeller().listener, EventType.CANCELLED_SALESORDER,
+			so);
+		return;
+	    }
+	    double price = Double.isNaN(change.getPrice()) ? so.getPrice()
+		    : change.getPrice();
+	    int remaining = so.getRemainingQuantity();
+	    SalesOrder amended = market.amendSalesOrder(so,
+		    change.getQuantity(), price);
+	    if (journal != null) {
+		if (amended == so) {
+		    journal.salesOrderReduced(so,
+			    remaining - so.getRemainingQuantity());
+		} else {
+		    journal.salesOrderExpired(so);
+		    journal.salesOrderAccepted(amended);
+		}
+	    }
+	    raise(so.getSeller().listener, EventType.AMENDED_SALESORDER,
+		    OrderChange.amend(who, so.getProductId(), id,
+			    change.getQuantity(), price));
+	    return;
+	}
+	PurchaseOrder po = market.getPurchaseOrder(id);
+	if (po != null && po.getBuyer().getName().equals(who)) {
+	    if (change.isCancel()) {
+		market.removePurchaseOrder(po);
+		if (journal != null)
+		    journal.purchaseOrderExpired(po);
+		raise(po.getBuyer().listener, EventType.CANCELLED_PURCHASEORDER,
+			po);
+		return;
+	    }
+	    double price = Double.isNaN(change.getPrice()) ? po
+		    .getMaximumAcceptedPrice() : change.getPrice();
+	    int remaining = po.getRemainingQuantity();
+	    PurchaseOrder amended = market.amendPurchaseOrder(po,
+		    change.getQuantity(), price);
+	    if (journal != null) {
+		if (amended == po) {
+		    journal.purchaseOrderReduced(po,
+			    remaining - po.getRemainingQuantity());
+		} else {
+		    journal.purchaseOrderExpired(po);
+		    journal.purchaseOrderAccepted(amended);
 		}
-		SalesOrder so = new SalesOrder(price, productId, quantity, id);
-		sos.add(so);
-		return so;
+	    }
+	    raise(po.getBuyer().listener, EventType.AMENDED_PURCHASEORDER,
+		    OrderChange.amend(who, po.getProductId(), id,
+			    change.getQuantity(), price));
+	    return;
+	}
+	LOGGER.info("ignoring " + change
+		+ ", who has no such order in the market");
+    }
+
+    /** @return the buyer with the given name, joining the market if new */
+    private Buyer getOrAddBuyer(String who) {
+	Buyer buyer = this.market.getBuyer(who);
+	if (buyer == null) {
+	    LOGGER.debug("buyer named " + who
+		    + " doesnt exist -> adding a new one");
+	    buyer = new Buyer(who);
+	    buyer.listener = listener;
+	    this.market.addBuyer(buyer);
+	}
+	return buyer;
+    }
+
+    /** @return the seller with the given name, joining the market if new */
+    private Seller getOrAddSeller(String who) {
+	Seller seller = this.market.getSeller(who);
+	if (seller == null) {
+	    LOGGER.debug("seller named " + who
+		    + " doesnt exist -> adding a new one");
+	    seller = new Seller(who);
+	    seller.listener = listener;
+	    this.market.addSeller(seller);
+	}
+	return seller;
+    }
+
+    /**
+     * puts the orders from a {@link Snapshot} and/or a {@link Journal} back
+     * into the market, as they were when they were written.
+     */
+    private class Recovery implements Journal.Handler {
+	private final Map<Integer, SalesOrder> salesOrders = new HashMap<>();
+	private final Map<Integer, PurchaseOrder> purchaseOrders = new HashMap<>();
+
+	void restore(Snapshot snapshot) {
+	    snapshot.getSellers().forEach(TradingEngine.this::getOrAddSeller);
+	    snapshot.getBuyers().forEach(TradingEngine.this::getOrAddBuyer);
+	    snapshot.getSalesOrders().forEach(o -> {
+		onSalesOrder(o.participant, o.productId, o.price,
+			o.originalQuantity, o.id, o.created);
+		market.reduceSalesOrder(salesOrders.get(o.id),
+			o.originalQuantity - o.remainingQuantity);
+	    });
+	    snapshot.getPurchaseOrders().forEach(o -> {
+		onPurchaseOrder(o.participant, o.productId, o.price,
+			o.originalQuantity, o.id, o.created);
+		market.reducePurchaseOrder(purchaseOrders.get(o.id),
+			o.originalQuantity - o.remainingQuantity);
+	    });
+	    snapshot.getMarketPrices().forEach(
+		    mp -> marketPrices.put(mp.getProductId(), mp));
+	    snapshot.getVolumeWindows().forEach(
+		    w -> volumeWindows.put(w.getProductId(), w));
+	    highestOrderId = Math.max(highestOrderId,
+		    snapshot.getHighestOrderId());
+	}
+
+	@Override
+	public void onSalesOrder(String seller, String productId,
+		double price, int quantity, int id, long created) {
+	    SalesOrder so = new SalesOrder(price, productId, quantity, id,
+		    new Date(created));
+	    market.addSalesOrder(getOrAddSeller(seller), so);
+	    salesOrders.put(id, so);
+	    highestOrderId = Math.max(highestOrderId, id);
+	}
+
+	@Override
+	public void onPurchaseOrder(String buyer, String productId,
+		double maximumAcceptedPrice, int quantity, int id, long created) {
+	    PurchaseOrder po = new PurchaseOrder(productId, quantity,
+		    maximumAcceptedPrice, id, new Date(created));
+	    market.addPurchaseOrder(getOrAddBuyer(buyer), po);
+	    purchaseOrders.put(id, po);
+	    highestOrderId = Math.max(highestOrderId, id);
+	}
+
+	@Override
+	public void onFill(int purchaseOrderId, int salesOrderId,
+		int quantity, double price, long timestamp) {
+	    PurchaseOrder po = purchaseOrders.get(purchaseOrderId);
+	    SalesOrder so = salesOrders.get(salesOrderId);
+	    if (po == null || so == null) {
+		LOGGER.warn("journal has a fill of unknown orders: PO "
+			+ purchaseOrderId + ", SO " + salesOrderId);
+		return;
+	    }
+	    market.reducePurchaseOrder(po, quantity);
+	    market.reduceSalesOrder(so, quantity);
+	    if (po.getRemainingQuantity() <= 0) {
+		onPurchaseOrderExpired(purchaseOrderId);
+	    }
+	    if (so.getRemainingQuantity() <= 0) {
+		onSalesOrderExpired(salesOrderId);
+	    }
+	    MarketPrice mp = marketPrices.get(so.getProductId());
+	    if (mp == null || mp.getTimestamp().getTime() < timestamp) {
+		marketPrices.put(so.getProductId(), new MarketPrice(
+			so.getProductId(), price, new Date(timestamp)));
+	    }
+	    getOrCreateVolumeWindow(so.getProductId()).add(timestamp,
+		    quantity, quantity * price);
+	}
+
+	@Override
+	public void onSalesOrderExpired(int id) {
+	    SalesOrder so = salesOrders.remove(id);
+	    if (so != null) {
+		market.removeSalesOrder(so);
+	    }
+	}
+
+	@Override
+	public void onPurchaseOrderExpired(int id) {
+	    PurchaseOrder po = purchaseOrders.remove(id);
+	    if (po != null) {
+		market.removePurchaseOrder(po);
+	    }
+	}
+
+	@Override
+	public void onSalesOrderReduced(int id, int quantity) {
+	    SalesOrder so = salesOrders.get(id);
+	    if (so != null) {
+		market.reduceSalesOrder(so, quantity);
+	    }
+	}
+
+	@Override
+	public void onPurchaseOrderReduced(int id, int quantity) {
+	    PurchaseOrder po = purchaseOrders.get(id);
+	    if (po != null) {
+		market.reducePurchaseOrder(po, quantity);
 	    }
 	}
     }
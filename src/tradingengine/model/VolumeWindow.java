@@ -0,0 +1,140 @@
+package tradingengine.model;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import tradingengine.model.TradingEngine.VolumeRecord;
+
+/**
+ * The trading volume of one product over the last {@link #WINDOW_MS}
+ * milliseconds, kept as a ring of {@link #BUCKET_MS} wide buckets with
+ * running totals. Recording a sale, dropping old buckets and reading the
+ * totals are all O(1) (amortised for dropping), and nothing is allocated per
+ * sale.
+ *
+ * The window moves in whole buckets, so a sale counts for between
+ * {@link #WINDOW_MS} - {@link #BUCKET_MS} and {@link #WINDOW_MS} ms.
+ *
+ * Only the engine thread updates a window. Other threads may read the totals,
+ * which are as of the last update.
+ */
+public class VolumeWindow {
+
+    public static final long WINDOW_MS = 1000 * 10;
+    public static final long BUCKET_MS = 100;
+    private static final int BUCKETS = (int) (WINDOW_MS / BUCKET_MS);
+
+    private final String productId;
+
+    private final int[] numberOfSales = new int[BUCKETS];
+    private final double[] turnover = new double[BUCKETS];
+    private final int[] count = new int[BUCKETS];
+
+    /** the bucket number (time / BUCKET_MS) of the newest bucket */
+    private long newestBucket;
+
+    private volatile int totalNumberOfSales;
+    private volatile double totalTurnover;
+    private volatile int totalCount;
+
+    public VolumeWindow(String productId, long now) {
+	this.productId = productId;
+	this.newestBucket = now / BUCKET_MS;
+    }
+
+    /** @return a copy of this window, eg for a {@link Snapshot} */
+    VolumeWindow copy() {
+	VolumeWindow copy = new VolumeWindow(productId, 0);
+	copy.newestBucket = newestBucket;
+	System.arraycopy(numberOfSales, 0, copy.numberOfSales, 0, BUCKETS);
+	System.arraycopy(turnover, 0, copy.turnover, 0, BUCKETS);
+	System.arraycopy(count, 0, copy.count, 0, BUCKETS);
+	copy.totalNumberOfSales = totalNumberOfSales;
+	copy.totalTurnover = totalTurnover;
+	copy.totalCount = totalCount;
+	return copy;
+    }
+
+    void write(DataOutput out) throws IOException {
+	out.writeUTF(productId);
+	out.writeLong(newestBucket);
+	for (int i = 0; i < BUCKETS; i++) {
+	    out.writeInt(numberOfSales[i]);
+	    out.writeDouble(turnover[i]);
+	    out.writeInt(count[i]);
+	}
+    }
+
+    static VolumeWindow read(DataInput in) throws IOException {
+	VolumeWindow window = new VolumeWindow(in.readUTF(), 0);
+	window.newestBucket = in.readLong();
+	for (int i = 0; i < BUCKETS; i++) {
+	    window.numberOfSales[i] = in.readInt();
+	    window.turnover[i] = in.readDouble();
+	    window.count[i] = in.readInt();
+	    window.totalNumberOfSales += window.numberOfSales[i];
+	    window.totalTurnover += window.turnover[i];
+	    window.totalCount += window.count[i];
+	}
+	return window;
+    }
+
+    /** records a sale of the given quantity and turnover at the given time */
+    public void add(long timestamp, int quantity, double saleTurnover) {
+	long bucket = timestamp / BUCKET_MS;
+	if (bucket > newestBucket) {
+	    expire(timestamp);
+	} else if (newestBucket - bucket >= BUCKETS) {
+	    return; // already outside the window
+	}
+	int i = (int) (bucket % BUCKETS);
+	numberOfSales[i] += quantity;
+	turnover[i] += saleTurnover;
+	count[i]++;
+	totalNumberOfSales += quantity;
+	totalTurnover += saleTurnover;
+	totalCount++;
+    }
+
+    /** drops the buckets which are no longer in the window at the given time */
+    public void expire(long now) {
+	long bucket = now / BUCKET_MS;
+	long steps = Math.min(bucket - newestBucket, BUCKETS);
+	for (long b = bucket - steps + 1; b <= bucket; b++) {
+	    int i = (int) (b % BUCKETS);
+	    totalNumberOfSales -= numberOfSales[i];
+	    totalTurnover -= turnover[i];
+	    totalCount -= count[i];
+	    numberOfSales[i] = 0;
+	    turnover[i] = 0.0;
+	    count[i] = 0;
+	}
+	if (totalCount == 0) {
+	    totalTurnover = 0.0; // dont let rounding errors pile up
+	}
+	newestBucket = Math.max(newestBucket, bucket);
+    }
+
+    public String getProductId() {
+	return productId;
+    }
+
+    public int getNumberOfSales() {
+	return totalNumberOfSales;
+    }
+
+    public double getTurnover() {
+	return totalTurnover;
+    }
+
+    public int getCount() {
+	return totalCount;
+    }
+
+    /** @return the totals, just with no timestamp */
+    public VolumeRecord toVolumeRecord() {
+	return new VolumeRecord(productId, totalNumberOfSales, totalTurnover,
+		null, totalCount);
+    }
+}
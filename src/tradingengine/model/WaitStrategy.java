@@ -0,0 +1,138 @@
+package tradingengine.model;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * How the engine thread waits between trading sessions. After each session,
+ * the engine calls {@link #await} with a check for new work and the time at
+ * which it has to run again anyway, eg to expire orders. Whoever hands the
+ * engine new work calls {@link #signal()}.
+ */
+public interface WaitStrategy {
+
+    /**
+     * waits until there may be work, or the deadline has passed, or the thread
+     * was interrupted.
+     *
+     * @param deadline
+     *            in milliseconds since the epoch
+     */
+    void await(BooleanSupplier hasWork, long deadline);
+
+    /** tells a waiting engine that there is new work. cheap if none waits. */
+    void signal();
+
+    /**
+     * @return the strategy with the given name: "blocking", "busy-spin",
+     *         "yielding" or "fixed", which sleeps the given interval after
+     *         every session, regardless of work.
+     */
+    public static WaitStrategy named(String name, long interval) {
+	switch (name) {
+	case "blocking":
+	    return new Blocking();
+	case "busy-spin":
+	    return new BusySpin();
+	case "yielding":
+	    return new Yielding();
+	case "fixed":
+	    return new FixedInterval(interval);
+	default:
+	    throw new IllegalArgumentException("unknown wait strategy " + name);
+	}
+    }
+
+    /**
+     * parks the engine thread until it is signalled or the deadline is due.
+     * uses no CPU while idle, but waking up costs a few microseconds.
+     */
+    public static class Blocking implements WaitStrategy {
+	private volatile Thread waiter;
+
+	@Override
+	public void await(BooleanSupplier hasWork, long deadline) {
+	    waiter = Thread.currentThread();
+	    try {
+		// work is checked after publishing the waiter, so a signal
+		// can not get lost in between
+		while (!hasWork.getAsBoolean()
+			&& System.currentTimeMillis() < deadline
+			&& !Thread.currentThread().isInterrupted()) {
+		    LockSupport.parkUntil(this, deadline);
+		}
+	    } finally {
+		waiter = null;
+	    }
+	}
+
+	@Override
+	public void signal() {
+	    Thread w = waiter;
+	    if (w != null) {
+		LockSupport.unpark(w);
+	    }
+	}
+    }
+
+    /**
+     * spins on the check for work. the lowest latency, but burns a whole core,
+     * even when idle.
+     */
+    public static class BusySpin implements WaitStrategy {
+	@Override
+	public void await(BooleanSupplier hasWork, long deadline) {
+	    while (!hasWork.getAsBoolean()
+		    && System.currentTimeMillis() < deadline) {
+		Thread.onSpinWait();
+	    }
+	}
+
+	@Override
+	public void signal() {
+	}
+    }
+
+    /**
+     * like {@link BusySpin}, but yields the core to other threads between
+     * checks.
+     */
+    public static class Yielding implements WaitStrategy {
+	@Override
+	public void await(BooleanSupplier hasWork, long deadline) {
+	    while (!hasWork.getAsBoolean()
+		    && System.currentTimeMillis() < deadline) {
+		Thread.yield();
+	    }
+	}
+
+	@Override
+	public void signal() {
+	}
+    }
+
+    /**
+     * sleeps a fixed interval after every session, whether there is work or
+     * not. this is how the engine always used to run.
+     */
+    public static class FixedInterval implements WaitStrategy {
+	private final long interval;
+
+	public FixedInterval(long interval) {
+	    this.interval = interval;
+	}
+
+	@Override
+	public void await(BooleanSupplier hasWork, long deadline) {
+	    try {
+		Thread.sleep(interval);
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+	    }
+	}
+
+	@Override
+	public void signal() {
+	}
+    }
+}
@@ -0,0 +1,165 @@
+package tradingengine.web;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+import tradingengine.model.OrderBatch;
+import tradingengine.model.PurchaseOrder;
+import tradingengine.model.SalesOrder;
+
+/**
+ * Reads many orders from the body of a /batch request, one per line:
+ *
+ * <pre>
+ * B userId productId quantity
+ * S userId productId quantity price
+ * </pre>
+ *
+ * for buying and selling, with single spaces in between. The orders are read
+ * in chunks of {@link #CHUNK} lines, so the body can be streamed. Each chunk
+ * gets its ids in one go, and its orders are grouped per engine and handed to
+ * each engine as one {@link OrderBatch}.
+ *
+ * The response has one line per order line, in the same order: the id of the
+ * order, or "ERROR " followed by the reason the line was rejected.
+ *
+ * Not thread safe - use one per request.
+ */
+public final class BatchOrders<E> {
+
+    static final int CHUNK = 1024;
+
+    private final Map<String, E> engines;
+    private final Set<String> knownProducts;
+    private final BiConsumer<E, OrderBatch> handOver;
+
+    // the current chunk
+    private final String[] lines = new String[CHUNK];
+    private final String[] errors = new String[CHUNK];
+    private final String[][] fields = new String[CHUNK][];
+
+    /**
+     * @param engines
+     *            the engine for each product id
+     * @param knownProducts
+     *            gets the product id of each order added
+     * @param handOver
+     *            hands a batch of orders to an engine
+     */
+    public BatchOrders(Map<String, E> engines, Set<String> knownProducts,
+	    BiConsumer<E, OrderBatch> handOver) {
+	this.engines = engines;
+	this.knownProducts = knownProducts;
+	this.handOver = handOver;
+    }
+
+    /**
+     * reads all orders, hands them to their engines and writes the ids.
+     *
+     * @return the number of orders accepted
+     */
+    public int process(BufferedReader in, Writer out) throws IOException {
+	int accepted = 0;
+	while (true) {
+	    int n = 0;
+	    String line;
+	    while (n < CHUNK && (line = in.readLine()) != null) {
+		if (!line.isEmpty()) {
+		    lines[n++] = line;
+		}
+	    }
+	    if (n == 0) {
+		return accepted;
+	    }
+	    accepted += processChunk(n, out);
+	}
+    }
+
+    private int processChunk(int n, Writer out) throws IOException {
+	int valid = 0;
+	for (int i = 0; i < n; i++) {
+	    errors[i] = validate(lines[i], i);
+	    if (errors[i] == null) {
+		valid++;
+	    }
+	}
+
+	int id = Constants.ID.getAndAdd(valid);
+	int[] ids = new int[n];
+	Map<E, OrderBatch> batches = new IdentityHashMap<>();
+	for (int i = 0; i < n; i++) {
+	    if (errors[i] != null) {
+		continue;
+	    }
+	    String[] f = fields[i];
+	    String who = f[1];
+	    String productId = f[2];
+	    int quantity = Integer.parseInt(f[3]);
+	    E engine = engines.get(productId);
+	    knownProducts.add(productId);
+	    OrderBatch batch = batches.get(engine);
+	    if (batch == null) {
+		batch = new OrderBatch(n);
+		batches.put(engine, batch);
+	    }
+	    ids[i] = id;
+	    if (f[0].equals("B")) {
+		batch.add(who, new PurchaseOrder(productId, quantity, 9999.9,
+			id++));
+	    } else {
+		batch.add(who, new SalesOrder(Double.parseDouble(f[4]),
+			productId, quantity, id++));
+	    }
+	}
+	batches.forEach(handOver);
+
+	for (int i = 0; i < n; i++) {
+	    if (errors[i] == null) {
+		out.write(Integer.toString(ids[i]));
+	    } else {
+		out.write("ERROR ");
+		out.write(errors[i]);
+	    }
+	    out.write('\n');
+	    lines[i] = null;
+	    fields[i] = null;
+	}
+	return valid;
+    }
+
+    /** @return why the line is not a valid order, or null if it is */
+    private String validate(String line, int i) {
+	String[] f = line.split(" ");
+	fields[i] = f;
+	if (f.length == 0) {
+	    // split drops trailing empty strings, so a line of only spaces
+	    return "no order on the line";
+	}
+	boolean buy = f[0].equals("B");
+	if (!buy && !f[0].equals("S")) {
+	    return "unknown order type " + f[0];
+	}
+	if (f.length != (buy ? 4 : 5)) {
+	    return "expected " + (buy ? 4 : 5) + " fields, got " + f.length;
+	}
+	if (!engines.containsKey(f[2])) {
+	    return "unknown product " + f[2];
+	}
+	try {
+	    if (Integer.parseInt(f[3]) <= 0) {
+		return "quantity must be positive";
+	    }
+	    if (!buy) {
+		Double.parseDouble(f[4]);
+	    }
+	} catch (NumberFormatException e) {
+	    return "bad number: " + e.getMessage();
+	}
+	return null;
+    }
+}
@@ -1,11 +1,21 @@
 package tradingengine.web;
 
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import tradingengine.model.Market.MatchingMode;
+
 public final class Constants {
 
-    // TODO use config to decide how engines to start
-    public static final int NUM_KIDS = 4;
+    // how many engines to start, between which the products are split
+    public static final int NUM_KIDS = Integer.getInteger(
+	    "tradingengine.engines", 4);
+
+    // how many ms between checks whether products should move from busy
+    // engines to idle ones, see ShardManager. 0, the default, never moves
+    // them, eg -Dtradingengine.rebalance.interval=10000 checks every 10 secs
+    public static final long SHARD_REBALANCE_INTERVAL = Long.getLong(
+	    "tradingengine.rebalance.interval", 0);
 
     public static final AtomicInteger ID = new AtomicInteger();
 
@@ -24,5 +34,67 @@ public final class Constants {
 					// trading
 					// sessions
 
+    // how engine threads wait between trading sessions: "blocking" until new
+    // orders arrive or orders expire, "busy-spin", "yielding", or "fixed",
+    // which always waits DELAY ms
+    public static final String WAIT_STRATEGY = System.getProperty(
+	    "tradingengine.wait.strategy", "blocking");
+
     public static final long TIMEOUT = 60000; // num ms after which incomplete
 					      // SOs and POs should be removed
+
+    // SWEEP fills a purchase order from several sellers in one trading
+    // session, rather than one seller per session
+    public static final MatchingMode MATCHING_MODE = MatchingMode.CHEAPEST_SELLER;
+
+    // how many threads, shared by all engines, trade the products of an
+    // engine in parallel at each trading session. 0 trades them one after
+    // another on the engine's own thread.
+    public static final int TRADING_PARALLELISM = Integer.getInteger(
+	    "tradingengine.trading.parallelism", 0);
+    public static final ForkJoinPool TRADING_POOL = TRADING_PARALLELISM > 0
+	    ? new ForkJoinPool(TRADING_PARALLELISM) : null;
+
+    // sales are persisted in the background, in JDBC batches of up to
+    // PERSIST_BATCH_SIZE, waiting at most PERSIST_LINGER ms for a batch to
+    // fill up. engines only wait for the database once PERSIST_QUEUE_CAPACITY
+    // sales are waiting to be written.
+    public static final int PERSIST_BATCH_SIZE = 500;
+    public static final long PERSIST_LINGER = 5;
+    public static final int PERSIST_QUEUE_CAPACITY = 100000;
+
+    // how many new orders can wait for an engine's next trading session,
+    // before requests have to wait for it
+    public static final int INGRESS_CAPACITY = 65536;
+
+    // engine threads hand their events to a thread of their own, which can
+    // fall behind by this many trading sessions before the engine waits
+    public static final int EVENT_QUEUE_CAPACITY = 1024;
+
+    // fills are kept for /result for about RESULTS_TTL ms, for at most
+    // RESULTS_MAX_ENTRIES orders
+    public static final int RESULTS_MAX_ENTRIES = 1000000;
+    public static final long RESULTS_TTL = 60000;
+
+    // the longest a client can wait for a fill with /result?wait=ms
+    public static final long RESULT_MAX_WAIT = 30000;
+
+    // how many ms between the quotes sent to each client of /marketdata,
+    // which only gets the latest quote of each product
+    public static final long MARKET_DATA_INTERVAL = 100;
+
+    // if set, each engine journals its orders and fills to a file in this
+    // directory, and recovers its market from that file when it starts. the
+    // files are named after the servlet and engine, eg threads-engine-0.journal
+    public static final String JOURNAL_DIR = System
+	    .getProperty("tradingengine.journal.dir");
+
+    // how many ms between snapshots of each engine's market, which are
+    // written next to the journal and make recovery faster
+    public static final long SNAPSHOT_INTERVAL = 60000;
+
+    // if set, the thread engines also take orders over TCP on this port, in
+    // the binary protocol of the gateway, see tradingengine.gateway
+    public static final int GATEWAY_PORT = Integer.getInteger(
+	    "tradingengine.gateway.port", -1);
+}
@@ -0,0 +1,158 @@
+package tradingengine.web;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import tradingengine.web.ResultsCache.Result;
+
+/**
+ * Parks a /result request until the order is filled or times out, or the
+ * client's deadline passes, without holding on to a container thread. The
+ * response is written by whoever gets there first: the engine's event, which
+ * hands the result to the waiter in the {@link ResultsCache}, or the
+ * deadline, which only answers if it manages to cancel the waiter.
+ */
+public final class LongPoll {
+
+    private static final Logger LOGGER = LogManager.getLogger("longPoll");
+
+    static final String PENDING = "UNKNOWN OR PENDING";
+
+    private static final ScheduledThreadPoolExecutor deadlines;
+
+    static {
+	deadlines = new ScheduledThreadPoolExecutor(1, r -> {
+	    Thread t = new Thread(r, "result-deadlines");
+	    t.setDaemon(true);
+	    return t;
+	});
+	deadlines.setRemoveOnCancelPolicy(true);
+    }
+
+    private LongPoll() {
+    }
+
+    /**
+     * answers a /result?id=7&amp;wait=5000 request, see {@link #await}. an id
+     * which is missing or not a number cannot belong to an order, so it gets
+     * {@link #PENDING}, as it always did. a wait which is not a number is
+     * answered with a 400.
+     */
+    public static void answer(HttpServletRequest req,
+	    HttpServletResponse resp, ResultsCache results) throws IOException {
+	String wait = req.getParameter("wait");
+	long waitMs = 0;
+	if (wait != null) {
+	    try {
+		waitMs = Long.parseLong(wait);
+	    } catch (NumberFormatException e) {
+		resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+			"wait must be a number of ms");
+		return;
+	    }
+	}
+	int orderId;
+	try {
+	    orderId = Integer.parseInt(req.getParameter("id"));
+	} catch (NumberFormatException e) {
+	    // a missing id is one too
+	    resp.getWriter().write(PENDING);
+	    return;
+	}
+	await(req, resp, results, orderId, waitMs);
+    }
+
+    /**
+     * answers the request with the result of the order, waiting at most the
+     * given time for it, and never more than
+     * {@link Constants#RESULT_MAX_WAIT} ms. answers straight away if the wait
+     * is 0, or the request does not support async.
+     */
+    public static void await(HttpServletRequest req, ServletResponse resp,
+	    ResultsCache results, int orderId, long waitMs) throws IOException {
+	long wait = Math.min(waitMs, Constants.RESULT_MAX_WAIT);
+	if (wait <= 0 || !req.isAsyncSupported()) {
+	    Result r = results.take(orderId);
+	    resp.getWriter().write(r == null ? PENDING : r.toJson());
+	    return;
+	}
+
+	AsyncContext async = req.startAsync();
+	// the container's timeout is only a safety net, the deadline below
+	// answers first
+	async.setTimeout(wait + 5000);
+	Waiter waiter = new Waiter(async);
+	async.addListener(new AsyncListener() {
+	    @Override
+	    public void onTimeout(AsyncEvent event) throws IOException {
+		if (results.cancelWait(orderId, waiter)) {
+		    waiter.accept(null);
+		}
+	    }
+
+	    @Override
+	    public void onError(AsyncEvent event) throws IOException {
+		results.cancelWait(orderId, waiter);
+	    }
+
+	    @Override
+	    public void onComplete(AsyncEvent event) throws IOException {
+	    }
+
+	    @Override
+	    public void onStartAsync(AsyncEvent event) throws IOException {
+	    }
+	});
+
+	Result r = results.takeOrWait(orderId, waiter);
+	if (r != null) {
+	    waiter.accept(r);
+	    return;
+	}
+	waiter.deadline = deadlines.schedule(() -> {
+	    if (results.cancelWait(orderId, waiter)) {
+		waiter.accept(null);
+	    }
+	}, wait, TimeUnit.MILLISECONDS);
+    }
+
+    /** writes the result, or {@link #PENDING} if there is none */
+    private static class Waiter implements Consumer<Result> {
+	private final AsyncContext async;
+	private volatile ScheduledFuture<?> deadline;
+
+	Waiter(AsyncContext async) {
+	    this.async = async;
+	}
+
+	@Override
+	public void accept(Result result) {
+	    ScheduledFuture<?> d = deadline;
+	    if (d != null) {
+		d.cancel(false);
+	    }
+	    try {
+		ServletResponse resp = async.getResponse();
+		resp.getWriter().write(
+			result == null ? PENDING : result.toJson());
+	    } catch (IOException | RuntimeException e) {
+		LOGGER.warn("failed to answer a waiting result request", e);
+	    } finally {
+		async.complete();
+	    }
+	}
+    }
+}
@@ -0,0 +1,284 @@
+package tradingengine.web;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import tradingengine.model.TradingEngine.MarketPrice;
+import tradingengine.model.VolumeWindow;
+
+/**
+ * Pushes the market price and trading volume of each product to clients as
+ * Server-Sent Events, eg for dashboards:
+ *
+ * <pre>
+ * event: quote
+ * data: {"productId":"1","price":5.5,"timestamp":...,"quantity":7,...}
+ * </pre>
+ *
+ * Engines only replace the latest quote of each product, see
+ * {@link #publish}, and never wait for clients. Every
+ * {@link Constants#MARKET_DATA_INTERVAL} ms, each client is sent the quotes
+ * which changed since it was last sent them, using non-blocking output. A
+ * client which cannot keep up simply misses the quotes which were replaced
+ * in the meantime, so it only ever gets the latest one of each product, and
+ * nothing queues up for it.
+ */
+public class MarketDataFeed {
+
+    private static final Logger LOGGER = LogManager
+	    .getLogger("marketDataFeed");
+
+    // sent to idle clients now and then, so that proxies keep them open
+    private static final byte[] HEARTBEAT = ":\n\n"
+	    .getBytes(StandardCharsets.UTF_8);
+    private static final long HEARTBEAT_MS = 15000;
+
+    private final Map<String, Quote> quotes = new ConcurrentHashMap<>();
+    private final Set<Subscriber> subscribers = ConcurrentHashMap
+	    .newKeySet();
+    private final ScheduledExecutorService sender;
+
+    public MarketDataFeed(String name, long intervalMs) {
+	ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+		1, r -> {
+		    Thread t = new Thread(r, name);
+		    t.setDaemon(true);
+		    return t;
+		});
+	executor.scheduleWithFixedDelay(this::sendAll, intervalMs,
+		intervalMs, TimeUnit.MILLISECONDS);
+	this.sender = executor;
+    }
+
+    /**
+     * replaces the quotes of the engine's products with its latest prices
+     * and volumes, if they changed. called with the data of a STATS event.
+     */
+    public void publish(Map<String, MarketPrice> prices,
+	    Map<String, VolumeWindow> volumeWindows) {
+	prices.forEach((productId, price) -> publish(productId, price,
+		volumeWindows.get(productId)));
+	volumeWindows.forEach((productId, window) -> {
+	    if (!prices.containsKey(productId)) {
+		publish(productId, null, window);
+	    }
+	});
+    }
+
+    private void publish(String productId, MarketPrice price,
+	    VolumeWindow window) {
+	Quote last = quotes.get(productId);
+	if (last == null || !last.matches(price, window)) {
+	    quotes.put(productId, new Quote(productId, price, window));
+	}
+    }
+
+    /**
+     * answers the request with an event stream of quotes, of all products,
+     * or of those in the comma separated productId parameter.
+     */
+    public void subscribe(HttpServletRequest req, HttpServletResponse resp)
+	    throws IOException {
+	if (!req.isAsyncSupported()) {
+	    resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+		    "market data needs async support");
+	    return;
+	}
+	String filter = req.getParameter("productId");
+	Set<String> productIds = filter == null ? null : new HashSet<>(
+		Arrays.asList(filter.split(",")));
+
+	resp.setContentType("text/event-stream");
+	resp.setCharacterEncoding("UTF-8");
+	resp.setHeader("Cache-Control", "no-cache");
+	AsyncContext async = req.startAsync();
+	async.setTimeout(0);
+	Subscriber subscriber = new Subscriber(async, resp.getOutputStream(),
+		productIds);
+	async.addListener(subscriber);
+	subscriber.out.setWriteListener(subscriber);
+	subscribers.add(subscriber);
+	LOGGER.debug("new market data subscriber, " + subscribers.size()
+		+ " in total");
+    }
+
+    /** @return the number of clients */
+    public int getSubscriberCount() {
+	return subscribers.size();
+    }
+
+    public void close() {
+	sender.shutdownNow();
+	subscribers.forEach(Subscriber::close);
+    }
+
+    private void sendAll() {
+	for (Subscriber subscriber : subscribers) {
+	    try {
+		subscriber.send();
+	    } catch (IOException | RuntimeException e) {
+		LOGGER.debug("dropping market data subscriber", e);
+		subscriber.close();
+	    }
+	}
+    }
+
+    /** the market price and volume of a product at some point in time */
+    static class Quote {
+	private final String productId;
+	private final double price;
+	private final long timestamp;
+	private final int quantity;
+	private final int sales;
+	private final double turnover;
+
+	Quote(String productId, MarketPrice price, VolumeWindow window) {
+	    this.productId = productId;
+	    this.price = price == null ? 0.0 : price.getPrice();
+	    this.timestamp = price == null ? 0 : price.getTimestamp()
+		    .getTime();
+	    this.quantity = window == null ? 0 : window.getNumberOfSales();
+	    this.sales = window == null ? 0 : window.getCount();
+	    this.turnover = window == null ? 0.0 : window.getTurnover();
+	}
+
+	/** @return true if nothing changed since this quote was taken */
+	boolean matches(MarketPrice price, VolumeWindow window) {
+	    boolean samePrice = price == null ? timestamp == 0 : price
+		    .getPrice() == this.price
+		    && price.getTimestamp().getTime() == timestamp;
+	    boolean sameVolume = window == null ? sales == 0 : window
+		    .getCount() == sales
+		    && window.getNumberOfSales() == quantity
+		    && window.getTurnover() == turnover;
+	    return samePrice && sameVolume;
+	}
+
+	void appendTo(StringBuilder sb) {
+	    sb.append("event: quote\ndata: {\"productId\":\"").append(
+		    productId).append('"');
+	    sb.append(",\"price\":").append(price);
+	    sb.append(",\"timestamp\":").append(timestamp);
+	    sb.append(",\"quantity\":").append(quantity);
+	    sb.append(",\"sales\":").append(sales);
+	    sb.append(",\"turnover\":").append(turnover);
+	    sb.append("}\n\n");
+	}
+    }
+
+    /**
+     * a client. it is written to by the sender thread, or by the container
+     * once the client can take more, under the subscriber's lock.
+     */
+    private class Subscriber implements WriteListener, AsyncListener {
+	private final AsyncContext async;
+	private final ServletOutputStream out;
+	private final Set<String> productIds;
+	// the quote of each product which this client was sent last
+	private final Map<String, Quote> sent = new HashMap<>();
+	private long lastWrite = System.currentTimeMillis();
+	private boolean closed;
+
+	Subscriber(AsyncContext async, ServletOutputStream out,
+		Set<String> productIds) {
+	    this.async = async;
+	    this.out = out;
+	    this.productIds = productIds;
+	}
+
+	/** writes the quotes which changed, if the client can take them */
+	synchronized void send() throws IOException {
+	    if (closed || !out.isReady()) {
+		return;
+	    }
+	    StringBuilder sb = null;
+	    for (Quote quote : quotes.values()) {
+		if (productIds != null
+			&& !productIds.contains(quote.productId)) {
+		    continue;
+		}
+		if (sent.get(quote.productId) != quote) {
+		    if (sb == null) {
+			sb = new StringBuilder(4096);
+		    }
+		    quote.appendTo(sb);
+		    sent.put(quote.productId, quote);
+		}
+	    }
+	    long now = System.currentTimeMillis();
+	    if (sb != null) {
+		out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+	    } else if (now - lastWrite >= HEARTBEAT_MS) {
+		out.write(HEARTBEAT);
+	    } else {
+		return;
+	    }
+	    lastWrite = now;
+	    if (out.isReady()) {
+		out.flush();
+	    }
+	}
+
+	@Override
+	public void onWritePossible() throws IOException {
+	    send();
+	}
+
+	@Override
+	public void onError(Throwable t) {
+	    LOGGER.debug("market data subscriber failed", t);
+	    close();
+	}
+
+	@Override
+	public void onComplete(AsyncEvent event) {
+	    subscribers.remove(this);
+	}
+
+	@Override
+	public void onTimeout(AsyncEvent event) {
+	    close();
+	}
+
+	@Override
+	public void onError(AsyncEvent event) {
+	    close();
+	}
+
+	@Override
+	public void onStartAsync(AsyncEvent event) {
+	}
+
+	synchronized void close() {
+	    subscribers.remove(this);
+	    if (!closed) {
+		closed = true;
+		try {
+		    async.complete();
+		} catch (IllegalStateException e) {
+		    // already completed by the container
+		}
+	    }
+	}
+    }
+}
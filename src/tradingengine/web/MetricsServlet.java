@@ -0,0 +1,164 @@
+package tradingengine.web;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import tradingengine.model.EngineMetrics;
+import tradingengine.model.EngineMetrics.Histogram;
+import tradingengine.model.EngineMetrics.Phase;
+import tradingengine.model.TradingEngine;
+
+/**
+ * Exposes the {@link EngineMetrics} of the engines in the Prometheus text
+ * format, summed up over all engines of the thread based servlet and over all
+ * of the actor based one, labelled mode="threads" and mode="actors":
+ *
+ * <pre>
+ * tradingengine_session_phase_seconds_count{mode="threads",phase="trade"} 17
+ * tradingengine_orders_ingested_total{mode="threads"} 12345
+ * tradingengine_resting_orders{mode="threads",side="sell"} 42
+ * tradingengine_ingress_depth{mode="threads"} 0
+ * </pre>
+ */
+@WebServlet(urlPatterns = { "/metrics" })
+public class MetricsServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Map<String, List<TradingEngine>> engines = new ConcurrentHashMap<>();
+
+    /**
+     * makes the engine's metrics part of those of the given mode, eg
+     * "threads". called by the servlets as they start their engines.
+     */
+    public static void register(String mode, TradingEngine engine) {
+	engines.computeIfAbsent(mode, m -> new CopyOnWriteArrayList<>()).add(
+		engine);
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+	    throws ServletException, IOException {
+	StringBuilder sb = new StringBuilder(16 * 1024);
+	write(sb);
+	resp.setContentType("text/plain; version=0.0.4; charset=utf-8");
+	resp.getWriter().write(sb.toString());
+    }
+
+    static void write(StringBuilder sb) {
+	header(sb, "tradingengine_engines", "gauge",
+		"the number of engines");
+	engines.forEach((mode, list) -> sample(sb, "tradingengine_engines",
+		labels(mode), list.size()));
+
+	header(sb, "tradingengine_session_phase_seconds", "histogram",
+		"how long each phase of the trading sessions took");
+	engines.forEach((mode, list) -> {
+	    for (Phase phase : Phase.values()) {
+		writeHistogram(sb, mode, phase, list);
+	    }
+	});
+
+	header(sb, "tradingengine_orders_ingested_total", "counter",
+		"the orders accepted into the markets");
+	engines.forEach((mode, list) -> {
+	    long orders = 0;
+	    for (TradingEngine engine : list) {
+		orders += engine.getMetrics().getOrdersIngested();
+	    }
+	    sample(sb, "tradingengine_orders_ingested_total", labels(mode),
+		    orders);
+	});
+
+	header(sb, "tradingengine_sales_total", "counter", "the sales made");
+	engines.forEach((mode, list) -> {
+	    long sales = 0;
+	    for (TradingEngine engine : list) {
+		sales += engine.getMetrics().getSales();
+	    }
+	    sample(sb, "tradingengine_sales_total", labels(mode), sales);
+	});
+
+	header(sb, "tradingengine_resting_orders", "gauge",
+		"the orders resting in the markets after the last session");
+	engines.forEach((mode, list) -> {
+	    long sell = 0;
+	    long buy = 0;
+	    for (TradingEngine engine : list) {
+		sell += engine.getMetrics().getRestingSalesOrders();
+		buy += engine.getMetrics().getRestingPurchaseOrders();
+	    }
+	    sample(sb, "tradingengine_resting_orders", labels(mode)
+		    + ",side=\"sell\"", sell);
+	    sample(sb, "tradingengine_resting_orders", labels(mode)
+		    + ",side=\"buy\"", buy);
+	});
+
+	header(sb, "tradingengine_ingress_depth", "gauge",
+		"the new orders waiting for the next session");
+	engines.forEach((mode, list) -> {
+	    long depth = 0;
+	    for (TradingEngine engine : list) {
+		depth += engine.getIngressDepth();
+	    }
+	    sample(sb, "tradingengine_ingress_depth", labels(mode), depth);
+	});
+    }
+
+    private static void writeHistogram(StringBuilder sb, String mode,
+	    Phase phase, List<TradingEngine> list) {
+	long[] counts = new long[EngineMetrics.BUCKETS + 1];
+	long sum = 0;
+	for (TradingEngine engine : list) {
+	    Histogram histogram = engine.getMetrics().getHistogram(phase);
+	    for (int i = 0; i < counts.length; i++) {
+		counts[i] += histogram.getCount(i);
+	    }
+	    sum += histogram.getSum();
+	}
+	String labels = labels(mode) + ",phase=\""
+		+ phase.name().toLowerCase(Locale.ROOT) + "\"";
+	long cumulative = 0;
+	for (int i = 0; i < counts.length; i++) {
+	    cumulative += counts[i];
+	    String le = i < EngineMetrics.BUCKETS ? seconds(EngineMetrics
+		    .getUpperBound(i)) : "+Inf";
+	    sample(sb, "tradingengine_session_phase_seconds_bucket", labels
+		    + ",le=\"" + le + "\"", cumulative);
+	}
+	sb.append("tradingengine_session_phase_seconds_sum{").append(labels)
+		.append("} ").append(seconds(sum)).append('\n');
+	sample(sb, "tradingengine_session_phase_seconds_count", labels,
+		cumulative);
+    }
+
+    private static void header(StringBuilder sb, String name, String type,
+	    String help) {
+	sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+	sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels,
+	    long value) {
+	sb.append(name).append('{').append(labels).append("} ").append(value)
+		.append('\n');
+    }
+
+    private static String labels(String mode) {
+	return "mode=\"" + mode + "\"";
+    }
+
+    private static String seconds(long nanos) {
+	return Double.toString(nanos / 1e9);
+    }
+}
@@ -0,0 +1,60 @@
+package tradingengine.web;
+
+import java.io.IOException;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import tradingengine.model.OrderChange;
+
+/**
+ * Reads the cancel or amendment of a resting order from a request:
+ *
+ * <pre>
+ * /cancel?userId=ant&amp;productId=1&amp;id=7
+ * /amend?userId=ant&amp;productId=1&amp;id=7&amp;quantity=5&amp;price=2.5
+ * </pre>
+ *
+ * where the quantity is the new remaining quantity, and the price is
+ * optional. The product routes the change to the engine which holds the
+ * order. The change is applied at the engine's next trading session at the
+ * latest, and its outcome shows in the order's result: a cancelled order's
+ * result has "cancelled":true.
+ */
+final class OrderChanges {
+
+    private OrderChanges() {
+    }
+
+    /**
+     * @param productIds
+     *            the products which have an engine
+     * @return the change, or null if the request was answered with an error
+     */
+    static OrderChange read(HttpServletRequest req, HttpServletResponse resp,
+	    Set<String> productIds, boolean amend) throws IOException {
+	String who = req.getParameter("userId");
+	String productId = req.getParameter("productId");
+	if (who == null || productId == null
+		|| !productIds.contains(productId)) {
+	    resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+		    "needs a userId and a known productId");
+	    return null;
+	}
+	try {
+	    int id = Integer.parseInt(req.getParameter("id"));
+	    if (!amend) {
+		return OrderChange.cancel(who, productId, id);
+	    }
+	    String price = req.getParameter("price");
+	    return OrderChange.amend(who, productId, id, Integer
+		    .parseInt(req.getParameter("quantity")),
+		    price == null ? Double.NaN : Double.parseDouble(price));
+	} catch (IllegalArgumentException e) {
+	    // NumberFormatException is one too
+	    resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+	    return null;
+	}
+    }
+}
@@ -0,0 +1,456 @@
+package tradingengine.web;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the fills of orders for a while, so that clients can pick them up
+ * with /result. Entries are keyed by the order id, and an order's fills are
+ * collected in its entry rather than replacing each other.
+ *
+ * The cache is split into stripes by order id, each with its own lock, an
+ * open addressing int map and a ring of time buckets. An entry goes into the
+ * bucket of the time it was created, and whole buckets are dropped once they
+ * are older than the time to live, so expiry never scans the entries which
+ * are still live. Each stripe also holds at most its share of the maximum
+ * number of entries, evicting the oldest when full, and each entry keeps at
+ * most {@link #MAX_FILLS} fills, so memory use is bounded.
+ *
+ * Instead of polling, a client can also wait for the first fill, the timeout
+ * or the cancel of an order, see {@link #takeOrWait}. The waiter is then
+ * handed the result on the thread which adds it, ie straight from the
+ * engine's events.
+ */
+public class ResultsCache {
+
+    /** the number of fills kept per order. later ones are only counted. */
+    public static final int MAX_FILLS = 16;
+
+    private static final int STRIPES = 16;
+    private static final int BUCKETS = 16;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long bucketMs;
+
+    /**
+     * @param maxEntries
+     *            the maximum number of orders to keep fills for
+     * @param ttlMs
+     *            roughly how long to keep them for, if they are not picked up
+     */
+    public ResultsCache(int maxEntries, long ttlMs) {
+	this.bucketMs = Math.max(1, ttlMs / (BUCKETS - 1));
+	for (int i = 0; i < STRIPES; i++) {
+	    stripes[i] = new Stripe(Math.max(1, maxEntries / STRIPES));
+	}
+    }
+
+    /** records a fill of the given order */
+    public void addFill(int orderId, String productId, int quantity,
+	    double price, long timestamp, int remainingQuantity) {
+	Stripe stripe = stripe(orderId);
+	Consumer<Result> waiter;
+	Result result;
+	synchronized (stripe) {
+	    result = stripe.getOrCreate(orderId, productId,
+		    System.currentTimeMillis());
+	    result.add(quantity, price, timestamp, remainingQuantity);
+	    waiter = stripe.takeWaiter(result);
+	}
+	if (waiter != null) {
+	    waiter.accept(result);
+	}
+    }
+
+    /** records that the given order timed out before it was filled */
+    public void addTimeout(int orderId, String productId,
+	    int remainingQuantity) {
+	addEnd(orderId, productId, remainingQuantity, false);
+    }
+
+    /** records that the given order was cancelled before it was filled */
+    public void addCancel(int orderId, String productId,
+	    int remainingQuantity) {
+	addEnd(orderId, productId, remainingQuantity, true);
+    }
+
+    /**
+     * notes the remaining quantity which the given order was amended to, if
+     * it has fills waiting. orders which have none get it with their next
+     * fill.
+     */
+    public void amend(int orderId, int remainingQuantity) {
+	Stripe stripe = stripe(orderId);
+	synchronized (stripe) {
+	    Result result = stripe.get(orderId);
+	    if (result != null) {
+		result.remainingQuantity = remainingQuantity;
+	    }
+	}
+    }
+
+    private void addEnd(int orderId, String productId, int remainingQuantity,
+	    boolean cancelled) {
+	Stripe stripe = stripe(orderId);
+	Consumer<Result> waiter;
+	Result result;
+	synchronized (stripe) {
+	    result = stripe.getOrCreate(orderId, productId,
+		    System.currentTimeMillis());
+	    if (cancelled) {
+		result.cancelled = true;
+	    } else {
+		result.timedOut = true;
+	    }
+	    result.remainingQuantity = Math.min(result.remainingQuantity,
+		    remainingQuantity);
+	    waiter = stripe.takeWaiter(result);
+	}
+	if (waiter != null) {
+	    waiter.accept(result);
+	}
+    }
+
+    /**
+     * @return the fills of the given order, removing them. if there are none
+     *         yet, returns null, and the waiter is handed the result as soon
+     *         as the order is filled, times out or is cancelled, unless
+     *         the wait is cancelled first. a waiter which was already waiting
+     *         for the same order is handed null.
+     */
+    public Result takeOrWait(int orderId, Consumer<Result> waiter) {
+	Stripe stripe = stripe(orderId);
+	Consumer<Result> replaced;
+	synchronized (stripe) {
+	    Result result = stripe.take(orderId, System.currentTimeMillis());
+	    if (result != null) {
+		return result;
+	    }
+	    replaced = stripe.waiters.put(orderId, waiter);
+	}
+	if (replaced != null) {
+	    replaced.accept(null);
+	}
+	return null;
+    }
+
+    /**
+     * stops the waiter from waiting.
+     *
+     * @return false if it was already handed a result
+     */
+    public boolean cancelWait(int orderId, Consumer<Result> waiter) {
+	Stripe stripe = stripe(orderId);
+	synchronized (stripe) {
+	    return stripe.waiters.remove(orderId, waiter);
+	}
+    }
+
+    /** @return the fills of the given order, removing them, or null if none */
+    public Result take(int orderId) {
+	return stripe(orderId).take(orderId, System.currentTimeMillis());
+    }
+
+    /** @return the number of orders with fills in the cache */
+    public int size() {
+	int size = 0;
+	for (Stripe stripe : stripes) {
+	    synchronized (stripe) {
+		size += stripe.size;
+	    }
+	}
+	return size;
+    }
+
+    private Stripe stripe(int orderId) {
+	return stripes[orderId & (STRIPES - 1)];
+    }
+
+    /** the fills of one order */
+    public static class Result {
+	private final int orderId;
+	private final String productId;
+	private final long created;
+	private final int[] quantities = new int[MAX_FILLS];
+	private final double[] prices = new double[MAX_FILLS];
+	private final long[] timestamps = new long[MAX_FILLS];
+	private int fills;
+	private int filledQuantity;
+	private double turnover;
+	private int remainingQuantity;
+	private boolean timedOut;
+	private boolean cancelled;
+
+	// the bucket this entry is in, see Stripe
+	private long bucket;
+	private Result prev = this;
+	private Result next = this;
+
+	private Result(int orderId, String productId, long created) {
+	    this.orderId = orderId;
+	    this.productId = productId;
+	    this.created = created;
+	}
+
+	private void add(int quantity, double price, long timestamp,
+		int remainingQuantity) {
+	    if (fills < MAX_FILLS) {
+		quantities[fills] = quantity;
+		prices[fills] = price;
+		timestamps[fills] = timestamp;
+	    }
+	    fills++;
+	    filledQuantity += quantity;
+	    turnover += quantity * price;
+	    this.remainingQuantity = Math.min(this.remainingQuantity,
+		    remainingQuantity);
+	}
+
+	public int getOrderId() {
+	    return orderId;
+	}
+
+	public String getProductId() {
+	    return productId;
+	}
+
+	public long getCreated() {
+	    return created;
+	}
+
+	/** @return the number of fills, including ones which were not kept */
+	public int getFills() {
+	    return fills;
+	}
+
+	public int getFilledQuantity() {
+	    return filledQuantity;
+	}
+
+	public double getAveragePrice() {
+	    return filledQuantity == 0 ? 0.0 : turnover / filledQuantity;
+	}
+
+	public int getRemainingQuantity() {
+	    return remainingQuantity;
+	}
+
+	public boolean isCompleted() {
+	    return remainingQuantity <= 0;
+	}
+
+	/** @return true if the order timed out before it was completed */
+	public boolean isTimedOut() {
+	    return timedOut;
+	}
+
+	/** @return true if the order was cancelled before it was completed */
+	public boolean isCancelled() {
+	    return cancelled;
+	}
+
+	/** @return the result as JSON, as returned by /result */
+	public String toJson() {
+	    StringBuilder sb = new StringBuilder(128 + 64 * Math.min(fills,
+		    MAX_FILLS));
+	    sb.append("{\"id\":").append(orderId);
+	    sb.append(",\"productId\":\"").append(productId).append('"');
+	    sb.append(",\"filledQuantity\":").append(filledQuantity);
+	    sb.append(",\"averagePrice\":").append(getAveragePrice());
+	    sb.append(",\"remainingQuantity\":").append(remainingQuantity);
+	    sb.append(",\"completed\":").append(isCompleted());
+	    sb.append(",\"timedOut\":").append(timedOut);
+	    sb.append(",\"cancelled\":").append(cancelled);
+	    sb.append(",\"fills\":[");
+	    for (int i = 0; i < Math.min(fills, MAX_FILLS); i++) {
+		if (i > 0) {
+		    sb.append(',');
+		}
+		sb.append("{\"quantity\":").append(quantities[i]);
+		sb.append(",\"price\":").append(prices[i]);
+		sb.append(",\"timestamp\":").append(timestamps[i]);
+		sb.append('}');
+	    }
+	    sb.append("]}");
+	    return sb.toString();
+	}
+
+	private void unlink() {
+	    prev.next = next;
+	    next.prev = prev;
+	    prev = this;
+	    next = this;
+	}
+
+	private void append(Result result) {
+	    result.prev = prev;
+	    result.next = this;
+	    prev.next = result;
+	    prev = result;
+	}
+    }
+
+    /**
+     * a part of the cache. the buckets are sentinels of circular lists of the
+     * entries created in the same bucketMs wide slice of time.
+     */
+    private class Stripe {
+	private final int maxSize;
+	private final int[] keys;
+	private final Result[] values;
+	private final int mask;
+	private int size;
+
+	private final Result[] buckets = new Result[BUCKETS];
+	private final long[] bucketNumbers = new long[BUCKETS];
+
+	Stripe(int maxSize) {
+	    this.maxSize = maxSize;
+	    int capacity = Integer.highestOneBit(maxSize * 2 - 1) << 1;
+	    this.keys = new int[capacity];
+	    this.values = new Result[capacity];
+	    this.mask = capacity - 1;
+	    for (int i = 0; i < BUCKETS; i++) {
+		buckets[i] = new Result(0, null, 0);
+		bucketNumbers[i] = -1;
+	    }
+	}
+
+	/** waiting for orders which have no result yet, see takeOrWait */
+	private final Map<Integer, Consumer<Result>> waiters = new HashMap<>();
+
+	Result getOrCreate(int orderId, String productId, long now) {
+	    long bucket = expire(now);
+	    Result result = get(orderId);
+	    if (result == null) {
+		if (size >= maxSize) {
+		    evictOldest();
+		}
+		result = new Result(orderId, productId, now);
+		result.remainingQuantity = Integer.MAX_VALUE;
+		result.bucket = bucket;
+		int slot = (int) (bucket % BUCKETS);
+		bucketNumbers[slot] = bucket;
+		buckets[slot].append(result);
+		put(orderId, result);
+	    }
+	    return result;
+	}
+
+	/**
+	 * @return the waiter for the result, which is then taken out of the
+	 *         cache, or null if nobody waits for it
+	 */
+	Consumer<Result> takeWaiter(Result result) {
+	    if (waiters.isEmpty()) {
+		return null;
+	    }
+	    Consumer<Result> waiter = waiters.remove(result.orderId);
+	    if (waiter != null) {
+		remove(result.orderId);
+		result.unlink();
+	    }
+	    return waiter;
+	}
+
+	synchronized Result take(int orderId, long now) {
+	    expire(now);
+	    Result result = remove(orderId);
+	    if (result != null) {
+		result.unlink();
+	    }
+	    return result;
+	}
+
+	/**
+	 * drops the buckets which have become too old.
+	 *
+	 * @return the number of the current bucket
+	 */
+	private long expire(long now) {
+	    long current = now / bucketMs;
+	    for (int slot = 0; slot < BUCKETS; slot++) {
+		if (bucketNumbers[slot] >= 0
+			&& bucketNumbers[slot] <= current - (BUCKETS - 1)) {
+		    Result sentinel = buckets[slot];
+		    while (sentinel.next != sentinel) {
+			Result result = sentinel.next;
+			result.unlink();
+			remove(result.orderId);
+		    }
+		    bucketNumbers[slot] = -1;
+		}
+	    }
+	    return current;
+	}
+
+	private void evictOldest() {
+	    int oldest = -1;
+	    for (int slot = 0; slot < BUCKETS; slot++) {
+		boolean empty = buckets[slot].next == buckets[slot];
+		if (!empty && (oldest < 0
+			|| bucketNumbers[slot] < bucketNumbers[oldest])) {
+		    oldest = slot;
+		}
+	    }
+	    if (oldest >= 0) {
+		Result result = buckets[oldest].next;
+		result.unlink();
+		remove(result.orderId);
+	    }
+	}
+
+	private int indexOf(int key) {
+	    // spreads sequential ids, which share the low bits of their stripe
+	    int h = key * 0x9E3779B9;
+	    return (h ^ (h >>> 16)) & mask;
+	}
+
+	private Result get(int key) {
+	    for (int i = indexOf(key);; i = (i + 1) & mask) {
+		Result value = values[i];
+		if (value == null || keys[i] == key) {
+		    return value;
+		}
+	    }
+	}
+
+	private void put(int key, Result value) {
+	    int i = indexOf(key);
+	    while (values[i] != null) {
+		i = (i + 1) & mask;
+	    }
+	    keys[i] = key;
+	    values[i] = value;
+	    size++;
+	}
+
+	/** removes the key, shifting later entries back to close the gap */
+	private Result remove(int key) {
+	    int i = indexOf(key);
+	    while (values[i] != null && keys[i] != key) {
+		i = (i + 1) & mask;
+	    }
+	    Result removed = values[i];
+	    if (removed == null) {
+		return null;
+	    }
+	    size--;
+	    int gap = i;
+	    for (int j = (gap + 1) & mask; values[j] != null; j = (j + 1)
+		    & mask) {
+		int home = indexOf(keys[j]);
+		// move the entry into the gap, unless its home lies
+		// cyclically in (gap, j]
+		if (((j - home) & mask) >= ((j - gap) & mask)) {
+		    keys[gap] = keys[j];
+		    values[gap] = values[j];
+		    gap = j;
+		}
+	    }
+	    values[gap] = null;
+	    return removed;
+	}
+    }
+}
@@ -0,0 +1,175 @@
+package tradingengine.web;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import tradingengine.model.TradingEngine;
+
+/**
+ * Decides which engine trades which product, and moves products from busy
+ * engines to idle ones while they trade.
+ *
+ * Every time {@link #rebalance} is called, it measures how busy each engine
+ * was since the last time, as the share of the time it spent in trading
+ * sessions, and how many orders each product got. If the busiest engine is
+ * busy enough, and much busier than the idlest one, the product on the
+ * busiest engine whose orders come closest to evening out the two engines is
+ * moved to the idlest one, see {@link TradingEngine#moveProduct}. At most one
+ * product is moved at a time, so that the next measurement already shows its
+ * effect.
+ *
+ * The routing table is updated by the engine which gives up the product, once
+ * that is safe, and orders which were routed the old way in the meantime are
+ * forwarded by that engine.
+ */
+public class ShardManager {
+
+    private static final Logger LOGGER = LogManager.getLogger("shardManager");
+
+    /** the share of its time the busiest engine must be busy for a move */
+    static final double MIN_BUSY = 0.5;
+
+    /** how much less busy the idlest engine must be for a move */
+    static final double MIN_BUSY_DIFFERENCE = 0.25;
+
+    private final List<TradingEngineThread> engines;
+    private final Map<String, TradingEngineThread> routes;
+    private final Map<String, TradingEngine> engineRoutes = new ConcurrentHashMap<>();
+
+    // the measurements of the last call to rebalance
+    private final Map<String, Long> lastOrderCounts = new HashMap<>();
+    private final long[] lastBusyNanos;
+    private long lastRebalance = System.nanoTime();
+    private volatile boolean moving;
+
+    /**
+     * @param engines
+     *            all engines
+     * @param routes
+     *            the engine trading each product, which is updated when
+     *            products move, so it must be safe to read concurrently
+     */
+    public ShardManager(List<TradingEngineThread> engines,
+	    Map<String, TradingEngineThread> routes) {
+	this.engines = engines;
+	this.routes = routes;
+	this.lastBusyNanos = new long[engines.size()];
+	routes.forEach((productId, engine) -> engineRoutes.put(productId,
+		engine.getEngine()));
+    }
+
+    /**
+     * @return the engine trading each product, updated as products move, eg
+     *         for the gateway
+     */
+    public Map<String, TradingEngine> getEngineRoutes() {
+	return engineRoutes;
+    }
+
+    /** measures the load of the engines, and moves a product if need be */
+    public synchronized void rebalance() {
+	long now = System.nanoTime();
+	double seconds = (now - lastRebalance) / 1e9;
+	lastRebalance = now;
+
+	double[] busy = new double[engines.size()];
+	for (int i = 0; i < busy.length; i++) {
+	    long busyNanos = engines.get(i).getEngine().getBusyNanos();
+	    busy[i] = (busyNanos - lastBusyNanos[i]) / 1e9 / seconds;
+	    lastBusyNanos[i] = busyNanos;
+	}
+
+	// a product's orders are counted by whichever engine traded it at the
+	// time, so they are summed over all engines
+	Map<String, Long> counts = new HashMap<>();
+	for (TradingEngineThread engine : engines) {
+	    for (Map.Entry<String, LongAdder> e : engine.getEngine()
+		    .getOrderCounts().entrySet()) {
+		counts.merge(e.getKey(), e.getValue().sum(), Long::sum);
+	    }
+	}
+	Map<String, Double> rates = new HashMap<>();
+	counts.forEach((productId, count) -> {
+	    Long last = lastOrderCounts.put(productId, count);
+	    rates.put(productId, (count - (last == null ? 0 : last))
+		    / seconds);
+	});
+
+	if (moving || engines.size() < 2) {
+	    return;
+	}
+	int busiest = 0;
+	int idlest = 0;
+	for (int i = 1; i < busy.length; i++) {
+	    if (busy[i] > busy[busiest]) {
+		busiest = i;
+	    }
+	    if (busy[i] < busy[idlest]) {
+		idlest = i;
+	    }
+	}
+	if (busy[busiest] < MIN_BUSY
+		|| busy[busiest] - busy[idlest] < MIN_BUSY_DIFFERENCE) {
+	    return;
+	}
+
+	TradingEngineThread from = engines.get(busiest);
+	TradingEngineThread to = engines.get(idlest);
+	double fromRate = 0.0;
+	double toRate = 0.0;
+	List<String> candidates = new ArrayList<>();
+	for (Map.Entry<String, TradingEngineThread> e : routes.entrySet()) {
+	    double rate = rates.getOrDefault(e.getKey(), 0.0);
+	    if (e.getValue() == from) {
+		fromRate += rate;
+		candidates.add(e.getKey());
+	    } else if (e.getValue() == to) {
+		toRate += rate;
+	    }
+	}
+
+	// moving a product which gets more than the difference would only
+	// move the problem
+	String best = null;
+	double bestDistance = Double.MAX_VALUE;
+	double target = (fromRate - toRate) / 2;
+	for (String productId : candidates) {
+	    double rate = rates.getOrDefault(productId, 0.0);
+	    if (rate > 0.0 && rate < fromRate - toRate
+		    && Math.abs(rate - target) < bestDistance) {
+		best = productId;
+		bestDistance = Math.abs(rate - target);
+	    }
+	}
+	if (best == null) {
+	    LOGGER.info(from.getName() + " is busy, but none of its products "
+		    + "can be moved to even out the load");
+	    return;
+	}
+	LOGGER.warn(String.format("moving product %s (%.0f orders/s) from %s "
+		+ "(%.0f%% busy) to %s (%.0f%% busy)", best, rates.get(best),
+		from.getName(), busy[busiest] * 100, to.getName(),
+		busy[idlest] * 100));
+	move(best, from, to);
+    }
+
+    /** moves the product to the other engine while both trade */
+    public void move(String productId, TradingEngineThread from,
+	    TradingEngineThread to) {
+	moving = true;
+	from.getEngine().moveProduct(productId, to.getEngine(), () -> {
+	    routes.put(productId, to);
+	    engineRoutes.put(productId, to.getEngine());
+	    moving = false;
+	    LOGGER.info("moved product " + productId + " from "
+		    + from.getName() + " to " + to.getName());
+	});
+    }
+}
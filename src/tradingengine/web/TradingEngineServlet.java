@@ -1,17 +1,22 @@
 package tradingengine.web;
 
 import static tradingengine.web.Constants.DELAY;
+import static tradingengine.web.Constants.GATEWAY_PORT;
 import static tradingengine.web.Constants.ID;
+import static tradingengine.web.Constants.JOURNAL_DIR;
+import static tradingengine.web.Constants.MARKET_DATA_INTERVAL;
 import static tradingengine.web.Constants.NUM_KIDS;
 import static tradingengine.web.Constants.PRODUCT_IDS;
+import static tradingengine.web.Constants.RESULTS_MAX_ENTRIES;
+import static tradingengine.web.Constants.RESULTS_TTL;
+import static tradingengine.web.Constants.SHARD_REBALANCE_INTERVAL;
 import static tradingengine.web.Constants.TIMEOUT;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -30,14 +35,20 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import tradingengine.gateway.Gateway;
+import tradingengine.model.OrderChange;
 import tradingengine.model.PurchaseOrder;
 import tradingengine.model.Sale;
 import tradingengine.model.SalesOrder;
+import tradingengine.model.TradingEngine;
+import tradingengine.model.TradingEngine.Event;
 import tradingengine.model.TradingEngine.EventType;
-import tradingengine.model.TradingEngine.VolumeRecord;
-import tradingengine.model.TradingEngineThread;
+import tradingengine.model.TradingEngine.Listener;
+import tradingengine.model.TradingEngine.MarketPrice;
+import tradingengine.model.VolumeWindow;
 
-@WebServlet(urlPatterns = { "/sell", "/buy", "/result" })
+@WebServlet(urlPatterns = { "/sell", "/buy", "/result", "/batch",
+	"/marketdata", "/cancel", "/amend" }, asyncSupported = true)
 public class TradingEngineServlet extends HttpServlet {
 
     private static final long serialVersionUID = 1L;
@@ -45,22 +56,33 @@ public class TradingEngineServlet extends HttpServlet {
     private static final Logger LOGGER = LogManager
 	    .getLogger("tradingEngineServlet");
 
-    private static Stats stats = new Stats();
-    private static final Map<String, TradingEngineThread> kids = new HashMap<>();
-    private static final Map<String, Result> results = new ConcurrentHashMap<>();
-    private static final Set<String> knownProducts = Collections
-	    .synchronizedSet(new HashSet<>());
+    private static final List<EngineEvents> shards = new ArrayList<>();
+    private static final List<TradingEngineThread> engines = new ArrayList<>();
+    // updated when products move between engines, see ShardManager
+    private static final Map<String, TradingEngineThread> kids = new ConcurrentHashMap<>();
+    private static final ResultsCache results = new ResultsCache(
+	    RESULTS_MAX_ENTRIES, RESULTS_TTL);
+    private static final Set<String> knownProducts = ConcurrentHashMap
+	    .newKeySet();
+    private static final MarketDataFeed marketData = new MarketDataFeed(
+	    "market-data", MARKET_DATA_INTERVAL);
     private static final AtomicInteger timedoutSales = new AtomicInteger(0);
+    private static volatile Gateway gateway;
+    private static ShardManager shardManager;
 
     static {
 	try {
-	    int chunk = PRODUCT_IDS.length / NUM_KIDS;
+	    int chunk = (PRODUCT_IDS.length + NUM_KIDS - 1) / NUM_KIDS;
 	    for (int i = 0, j = PRODUCT_IDS.length; i < j; i += chunk) {
-		String[] temparray = Arrays.copyOfRange(PRODUCT_IDS, i, i
-			+ chunk);
+		String[] temparray = Arrays.copyOfRange(PRODUCT_IDS, i, Math
+			.min(i + chunk, j));
 		LOGGER.info("created engine for products " + temparray);
+		EngineEvents shard = new EngineEvents();
+		shards.add(shard);
 		TradingEngineThread engineThread = new TradingEngineThread(
-			DELAY, TIMEOUT, (type, data) -> event(type, data));
+			DELAY, TIMEOUT, shard);
+		engines.add(engineThread);
+		MetricsServlet.register("threads", engineThread.getEngine());
 		for (int k = 0; k < temparray.length; k++) {
 		    LOGGER.debug("mapping productId '" + temparray[k]
 			    + "' to engine " + i);
@@ -69,97 +91,55 @@ public class TradingEngineServlet extends HttpServlet {
 		LOGGER.info("---started trading");
 		engineThread.start();
 	    }
-	} catch (NamingException e) {
+	} catch (NamingException | IOException e) {
 	    LOGGER.error("failed to start engine", e);
 	}
 
-	// remove results older than a minute, every 5 seconds.
+	// journals only ever hold the orders of their own engine, so products
+	// stay where they are if engines journal
+	if (SHARD_REBALANCE_INTERVAL > 0 && JOURNAL_DIR == null) {
+	    shardManager = new ShardManager(engines, kids);
+	    new Timer("shards", true).schedule(new TimerTask() {
+		@Override
+		public void run() {
+		    shardManager.rebalance();
+		}
+	    }, SHARD_REBALANCE_INTERVAL, SHARD_REBALANCE_INTERVAL);
+	}
+
+	if (GATEWAY_PORT >= 0) {
+	    Map<String, TradingEngine> routes;
+	    if (shardManager != null) {
+		routes = shardManager.getEngineRoutes();
+	    } else {
+		routes = new HashMap<>();
+		kids.forEach((productId, engineThread) -> routes.put(
+			productId, engineThread.getEngine()));
+	    }
+	    try {
+		Gateway g = new Gateway(new InetSocketAddress(GATEWAY_PORT),
+			routes, ID);
+		g.start();
+		gateway = g;
+	    } catch (IOException e) {
+		LOGGER.error("failed to start gateway", e);
+	    }
+	}
+
+	// results expire by themselves, see ResultsCache.
 	// in a real system you wouldnt necessarily cache results like
 	// we are doing - the sales are actually persisted by the
 	// trading engine - so clients could go look there!
-	new Timer("cleaner", true).scheduleAtFixedRate(new TimerTask() {
+	new Timer("stats", true).scheduleAtFixedRate(new TimerTask() {
 	    @Override
 	    public void run() {
-		LOGGER.error("cleaning results... sales per minute: "
-			+ stats.totalSalesPerMinute + ", "
-			+ timedoutSales.get() + " timedout orders");
-		long now = System.currentTimeMillis();
-		List<String> toRemove = new ArrayList<>();
-		results.forEach((k, v) -> {
-		    if (now - v.created > 60000) {
-			toRemove.add(k);
-		    }
-		});
-		toRemove.forEach(k -> results.remove(k));
-		LOGGER.info("completed cleaning results in "
-			+ (System.currentTimeMillis() - now) + "ms");
+		LOGGER.error("sales per minute: " + getTotalSalesPerMinute()
+			+ ", " + timedoutSales.get() + " timedout orders, "
+			+ results.size() + " results waiting");
 	    }
 	}, 5000L, 5000L);
     }
 
-    public static synchronized void event(final EventType type,
-	    final Object data) {
-	switch (type) {
-	case SALE: {
-	    Sale sale = (Sale) data;
-	    int id = sale.getSalesOrder().getId();
-	    results.put(String.valueOf(id), new Result(String.valueOf(data)));
-	    if (sale.getSalesOrder().getRemainingQuantity() == 0) {
-		String msg = "COMPLETED sales order";
-		LOGGER.info("\n" + id + ") " + msg + " " + data);
-	    } else {
-		LOGGER.info("\n" + id + ") PARTIAL sales order " + data);
-	    }
-	    break;
-	}
-	case PURCHASE: {
-	    Sale sale = (Sale) data;
-	    int id = sale.getPurchaseOrder().getId();
-	    results.put(String.valueOf(id), new Result(String.valueOf(data)));
-	    if (sale.getPurchaseOrder().getRemainingQuantity() == 0) {
-		String msg = "COMPLETED purchase order";
-		LOGGER.info("\n" + id + ") " + msg + " " + data);
-	    } else {
-		LOGGER.info("\n" + id + ") PARTIAL purchase order " + data);
-	    }
-	    break;
-	}
-	case TIMEOUT_SALESORDER: {
-	    timedoutSales.incrementAndGet();
-	    SalesOrder so = (SalesOrder) data;
-	    String msg = "TIMEOUT sales order";
-	    LOGGER.info("\n" + so.getId() + ") " + msg + " " + data);
-	    break;
-	}
-	case TIMEOUT_PURCHASEORDER: {
-	    timedoutSales.incrementAndGet();
-	    PurchaseOrder po = (PurchaseOrder) data;
-	    String msg = "TIMEOUT purchase order";
-	    LOGGER.info("\n" + po.getId() + ") " + msg + " " + data);
-	    break;
-	}
-	case STATS: {
-	    synchronized (knownProducts) {
-		Map<String, List<VolumeRecord>> mapOfVolumeRecords = (Map<String, List<VolumeRecord>>) ((Object[]) data)[2];
-		stats.totalSalesPerMinute = knownProducts
-			.stream()
-			.map(productId -> {
-			    return VolumeRecord.aggregate(mapOfVolumeRecords
-				    .getOrDefault(productId,
-					    Collections.emptyList())).count;
-			}).reduce(Integer::sum).orElse(0) * 6; // since stats
-							       // are
-		// recorded
-		// for the last
-		// 10 secs
-	    }
-	    break;
-	}
-	default:
-	    break;
-	}
-    }
-
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp)
 	    throws ServletException, IOException {
@@ -167,6 +147,31 @@ public class TradingEngineServlet extends HttpServlet {
 	String path = req.getServletPath();
 	LOGGER.debug("received command: '" + path + "'");
 
+	// /marketdata?productId=1,2 streams the quotes of those products
+	if (path.equals("/marketdata")) {
+	    marketData.subscribe(req, resp);
+	    return;
+	}
+
+	// /result?id=7&wait=5000 waits up to 5 secs for the order to be
+	// filled or time out, rather than answering UNKNOWN OR PENDING straight
+	// away
+	if (path.equals("/result")) {
+	    LongPoll.answer(req, resp, results);
+	    return;
+	}
+
+	// /cancel?userId=ant&productId=1&id=7 and /amend, see OrderChanges
+	if (path.equals("/cancel") || path.equals("/amend")) {
+	    OrderChange change = OrderChanges.read(req, resp, kids.keySet(),
+		    path.equals("/amend"));
+	    if (change != null) {
+		kids.get(change.getProductId()).changeOrder(change);
+		resp.getWriter().write(change.toJson());
+	    }
+	    return;
+	}
+
 	String who = req.getParameter("userId");
 	String productId = req.getParameter("productId");
 	int quantity = Integer.parseInt(req.getParameter("quantity"));
@@ -179,22 +184,13 @@ public class TradingEngineServlet extends HttpServlet {
 	    PurchaseOrder po = engine.addPurchaseOrder(who, productId,
 		    quantity, id);
 
-	    resp.getWriter().write("\"id\":" + id + ", " + String.valueOf(po));
+	    resp.getWriter().write(po.toJson());
 	} else if (path.equals("/sell")) {
 	    double price = Double.parseDouble(req.getParameter("price"));
 	    SalesOrder so = engine.addSalesOrder(who, productId, quantity,
 		    price, id);
 
-	    resp.getWriter().write("\"id\":" + id + ", " + String.valueOf(so));
-	} else if (path.equals("/result")) {
-	    String key = req.getParameter("id");
-	    Result r = results.get(key);
-	    if (r != null) {
-		results.remove(key);
-		resp.getWriter().write(r.data);
-	    } else {
-		resp.getWriter().write("UNKNOWN OR PENDING");
-	    }
+	    resp.getWriter().write(so.toJson());
 	} else {
 	    String msg = "Unknown command " + path;
 	    LOGGER.warn(msg);
@@ -202,17 +198,139 @@ public class TradingEngineServlet extends HttpServlet {
 
     }
 
-    private static class Stats {
-	int totalSalesPerMinute;
+    // /batch with a body of one order per line, see BatchOrders
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+	    throws ServletException, IOException {
+	String path = req.getServletPath();
+	if (path.equals("/batch")) {
+	    resp.setContentType("text/plain");
+	    BatchOrders<TradingEngineThread> orders = new BatchOrders<>(kids,
+		    knownProducts, TradingEngineThread::addOrders);
+	    int accepted = orders.process(req.getReader(), resp.getWriter());
+	    LOGGER.debug("accepted a batch of " + accepted + " orders");
+	} else {
+	    super.doPost(req, resp);
+	}
+    }
+
+    private static int getTotalSalesPerMinute() {
+	return shards.stream().mapToInt(shard -> shard.salesPerMinute).sum();
     }
 
-    private static class Result {
-	String data;
-	long created;
+    /**
+     * handles the events of one engine. every engine has its own, so that
+     * engines never wait for each other while results are built.
+     */
+    private static class EngineEvents implements Listener {
+	private volatile int salesPerMinute;
+
+	@Override
+	public void onEvents(List<Event> events) {
+	    Listener.super.onEvents(events);
+	    // fills of orders which came through the gateway go back to its
+	    // clients too
+	    Gateway g = gateway;
+	    if (g != null) {
+		g.onEvents(events);
+	    }
+	}
 
-	Result(String data) {
-	    this.data = data;
-	    this.created = System.currentTimeMillis();
+	@Override
+	public void onEvent(final EventType type, final Object data) {
+	    switch (type) {
+	    case SALE: {
+		Sale sale = (Sale) data;
+		int id = sale.getSalesOrder().getId();
+		results.addFill(id, sale.getProductId(), sale.getQuantity(),
+			sale.getPrice(), sale.getTime(), sale
+				.getSalesOrderRemaining());
+		if (sale.getSalesOrderRemaining() == 0) {
+		    String msg = "COMPLETED sales order";
+		    LOGGER.info("\n" + id + ") " + msg + " " + data);
+		} else {
+		    LOGGER.info("\n" + id + ") PARTIAL sales order " + data);
+		}
+		break;
+	    }
+	    case PURCHASE: {
+		Sale sale = (Sale) data;
+		int id = sale.getPurchaseOrder().getId();
+		results.addFill(id, sale.getProductId(), sale.getQuantity(),
+			sale.getPrice(), sale.getTime(), sale
+				.getPurchaseOrderRemaining());
+		if (sale.getPurchaseOrderRemaining() == 0) {
+		    String msg = "COMPLETED purchase order";
+		    LOGGER.info("\n" + id + ") " + msg + " " + data);
+		} else {
+		    LOGGER.info("\n" + id + ") PARTIAL purchase order "
+			    + data);
+		}
+		break;
+	    }
+	    case TIMEOUT_SALESORDER: {
+		timedoutSales.incrementAndGet();
+		SalesOrder so = (SalesOrder) data;
+		results.addTimeout(so.getId(), so.getProductId(),
+			so.getRemainingQuantity());
+		String msg = "TIMEOUT sales order";
+		LOGGER.info("\n" + so.getId() + ") " + msg + " " + data);
+		break;
+	    }
+	    case TIMEOUT_PURCHASEORDER: {
+		timedoutSales.incrementAndGet();
+		PurchaseOrder po = (PurchaseOrder) data;
+		results.addTimeout(po.getId(), po.getProductId(),
+			po.getRemainingQuantity());
+		String msg = "TIMEOUT purchase order";
+		LOGGER.info("\n" + po.getId() + ") " + msg + " " + data);
+		break;
+	    }
+	    case CANCELLED_SALESORDER: {
+		SalesOrder so = (SalesOrder) data;
+		results.addCancel(so.getId(), so.getProductId(),
+			so.getRemainingQuantity());
+		LOGGER.info("\n" + so.getId() + ") CANCELLED sales order "
+			+ data);
+		break;
+	    }
+	    case CANCELLED_PURCHASEORDER: {
+		PurchaseOrder po = (PurchaseOrder) data;
+		results.addCancel(po.getId(), po.getProductId(),
+			po.getRemainingQuantity());
+		LOGGER.info("\n" + po.getId() + ") CANCELLED purchase order "
+			+ data);
+		break;
+	    }
+	    case AMENDED_SALESORDER:
+	    case AMENDED_PURCHASEORDER: {
+		OrderChange change = (OrderChange) data;
+		results.amend(change.getOrderId(), change.getQuantity());
+		LOGGER.info("\n" + change.getOrderId() + ") AMENDED " + data);
+		break;
+	    }
+	    case STATS: {
+		@SuppressWarnings("unchecked")
+		Map<String, VolumeWindow> volumeWindows = (Map<String, VolumeWindow>) ((Object[]) data)[1];
+		@SuppressWarnings("unchecked")
+		Map<String, MarketPrice> marketPrices = (Map<String, MarketPrice>) ((Object[]) data)[0];
+		marketData.publish(marketPrices, volumeWindows);
+		// the engine's products change as they are moved around, but
+		// it only has the windows of its current ones
+		int count = 0;
+		for (VolumeWindow window : volumeWindows.values()) {
+		    if (knownProducts.contains(window.getProductId())) {
+			count += window.getCount();
+		    }
+		}
+		// times 6 since stats are recorded for only the last ten
+		// secs, and we want them per minute
+		salesPerMinute = count * 6;
+		break;
+	    }
+	    default:
+		break;
+	    }
 	}
     }
 }
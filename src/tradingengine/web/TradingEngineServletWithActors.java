@@ -2,16 +2,25 @@ package tradingengine.web;
 
 import static tradingengine.web.Constants.DELAY;
 import static tradingengine.web.Constants.ID;
+import static tradingengine.web.Constants.JOURNAL_DIR;
+import static tradingengine.web.Constants.MARKET_DATA_INTERVAL;
+import static tradingengine.web.Constants.MATCHING_MODE;
 import static tradingengine.web.Constants.NUM_KIDS;
+import static tradingengine.web.Constants.PERSIST_BATCH_SIZE;
+import static tradingengine.web.Constants.PERSIST_LINGER;
+import static tradingengine.web.Constants.PERSIST_QUEUE_CAPACITY;
 import static tradingengine.web.Constants.PRODUCT_IDS;
+import static tradingengine.web.Constants.RESULTS_MAX_ENTRIES;
+import static tradingengine.web.Constants.RESULTS_TTL;
+import static tradingengine.web.Constants.SNAPSHOT_INTERVAL;
 import static tradingengine.web.Constants.TIMEOUT;
+import static tradingengine.web.Constants.TRADING_POOL;
 
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -36,15 +45,20 @@ import akka.actor.ActorSystem;
 import akka.actor.Props;
 import akka.japi.pf.ReceiveBuilder;
 import tradingengine.model.Buyer;
+import tradingengine.model.OrderBatch;
+import tradingengine.model.OrderChange;
 import tradingengine.model.PurchaseOrder;
 import tradingengine.model.Sale;
 import tradingengine.model.SalesOrder;
 import tradingengine.model.Seller;
 import tradingengine.model.TradingEngine;
 import tradingengine.model.TradingEngine.EventType;
-import tradingengine.model.TradingEngine.VolumeRecord;
+import tradingengine.model.TradingEngine.Listener;
+import tradingengine.model.TradingEngine.MarketPrice;
+import tradingengine.model.VolumeWindow;
 
-@WebServlet(urlPatterns = { "/sell2", "/buy2", "/result2" })
+@WebServlet(urlPatterns = { "/sell2", "/buy2", "/result2", "/batch2",
+	"/marketdata2", "/cancel2", "/amend2" }, asyncSupported = true)
 public class TradingEngineServletWithActors extends HttpServlet {
 
     private static final long serialVersionUID = 1L;
@@ -55,21 +69,28 @@ public class TradingEngineServletWithActors extends HttpServlet {
     private static final ActorSystem teSystem = ActorSystem
 	    .create("TradingEngines");
 
-    private static final Stats stats = new Stats();
+    private static final List<EngineEvents> shards = new ArrayList<>();
     private static final Map<String, ActorRef> kids = new HashMap<>();
-    private static final Map<String, Result> results = new ConcurrentHashMap<>();
-    private static final Set<String> knownProducts = Collections
-	    .synchronizedSet(new HashSet<>());
+    private static final ResultsCache results = new ResultsCache(
+	    RESULTS_MAX_ENTRIES, RESULTS_TTL);
+    private static final Set<String> knownProducts = ConcurrentHashMap
+	    .newKeySet();
+    private static final MarketDataFeed marketData = new MarketDataFeed(
+	    "market-data2", MARKET_DATA_INTERVAL);
     private static final AtomicInteger timedoutSales = new AtomicInteger(0);
 
     static {
-	int chunk = PRODUCT_IDS.length / NUM_KIDS;
+	int chunk = (PRODUCT_IDS.length + NUM_KIDS - 1) / NUM_KIDS;
 	for (int i = 0, j = PRODUCT_IDS.length; i < j; i += chunk) {
-	    String[] temparray = Arrays.copyOfRange(PRODUCT_IDS, i, i + chunk);
+	    String[] temparray = Arrays.copyOfRange(PRODUCT_IDS, i, Math.min(
+		    i + chunk, j));
 	    LOGGER.info("created engine for products " + temparray);
 
-	    ActorRef actor = teSystem.actorOf(
-		    Props.create(TradingEngineActor.class), "engine-" + i);
+	    EngineEvents shard = new EngineEvents(temparray);
+	    shards.add(shard);
+	    ActorRef actor = teSystem.actorOf(Props.create(
+		    TradingEngineActor.class, "engine-" + i, shard), "engine-"
+		    + i);
 	    for (int k = 0; k < temparray.length; k++) {
 		LOGGER.debug("mapping productId '" + temparray[k]
 			+ "' to engine " + i);
@@ -79,95 +100,20 @@ public class TradingEngineServletWithActors extends HttpServlet {
 	    actor.tell(TradingEngineActor.RUN, ActorRef.noSender());
 	}
 
-	// remove results older than a minute, every 5 seconds.
+	// results expire by themselves, see ResultsCache.
 	// in a real system you wouldnt necessarily cache results like
 	// we are doing - the sales are actually persisted by the
 	// trading engine - so clients could go look there!
-	new Timer("cleaner", true).scheduleAtFixedRate(new TimerTask() {
+	new Timer("stats", true).scheduleAtFixedRate(new TimerTask() {
 	    @Override
 	    public void run() {
-		LOGGER.error("cleaning results... sales per minute: "
-			+ stats.totalSalesPerMinute + ", "
-			+ timedoutSales.get() + " timedout orders");
-		long now = System.currentTimeMillis();
-		List<String> toRemove = new ArrayList<>();
-		results.forEach((k, v) -> {
-		    if (now - v.created > 60000) {
-			toRemove.add(k);
-		    }
-		});
-		toRemove.forEach(k -> results.remove(k));
-		LOGGER.info("completed cleaning results in "
-			+ (System.currentTimeMillis() - now) + "ms");
+		LOGGER.error("sales per minute: " + getTotalSalesPerMinute()
+			+ ", " + timedoutSales.get() + " timedout orders, "
+			+ results.size() + " results waiting");
 	    }
 	}, 5000L, 5000L);
     }
 
-    public static synchronized void event(final EventType type,
-	    final Object data) {
-	switch (type) {
-	case SALE: {
-	    Sale sale = (Sale) data;
-	    int id = sale.getSalesOrder().getId();
-	    results.put(String.valueOf(id), new Result(String.valueOf(data)));
-	    if (sale.getSalesOrder().getRemainingQuantity() == 0) {
-		String msg = "COMPLETED sales order";
-		LOGGER.info("\n" + id + ") " + msg + " " + data);
-	    } else {
-		LOGGER.info("\n" + id + ") PARTIAL sales order " + data);
-	    }
-	    break;
-	}
-	case PURCHASE: {
-	    Sale sale = (Sale) data;
-	    int id = sale.getPurchaseOrder().getId();
-	    results.put(String.valueOf(id), new Result(String.valueOf(data)));
-	    if (sale.getPurchaseOrder().getRemainingQuantity() == 0) {
-		String msg = "COMPLETED purchase order";
-		LOGGER.info("\n" + id + ") " + msg + " " + data);
-	    } else {
-		LOGGER.info("\n" + id + ") PARTIAL purchase order " + data);
-	    }
-	    break;
-	}
-	case TIMEOUT_SALESORDER: {
-	    timedoutSales.incrementAndGet();
-	    SalesOrder so = (SalesOrder) data;
-	    String msg = "TIMEOUT sales order";
-	    LOGGER.info("\n" + so.getId() + ") " + msg + " " + data);
-	    break;
-	}
-	case TIMEOUT_PURCHASEORDER: {
-	    timedoutSales.incrementAndGet();
-	    PurchaseOrder po = (PurchaseOrder) data;
-	    String msg = "TIMEOUT purchase order";
-	    LOGGER.info("\n" + po.getId() + ") " + msg + " " + data);
-	    break;
-	}
-	case STATS: {
-	    // an alternative approach for dealing with concurrency problems
-	    // like ConcurrentModificationException is to copy the data, but it
-	    // only works when handling read only data
-	    Set<String> knownProductsCopy = new HashSet<>(knownProducts);
-	    Map<String, List<VolumeRecord>> mapOfVolumeRecords = new HashMap(
-		    (Map<String, List<VolumeRecord>>) ((Object[]) data)[2]);
-
-	    stats.totalSalesPerMinute = knownProductsCopy
-		    .stream()
-		    .map(productId -> {
-			return VolumeRecord.aggregate(new ArrayList(
-				mapOfVolumeRecords.getOrDefault(productId,
-					Collections.emptyList()))).count;
-		    }).reduce(Integer::sum).orElse(0) * 6;
-	    // times 6 since stats are recorded for only the last ten secs,
-	    // and we want them per minute
-	    break;
-	}
-	default:
-	    break;
-	}
-    }
-
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp)
 	    throws ServletException, IOException {
@@ -175,6 +121,32 @@ public class TradingEngineServletWithActors extends HttpServlet {
 	String path = req.getServletPath();
 	LOGGER.debug("received command: '" + path + "'");
 
+	// /marketdata2?productId=1,2 streams the quotes of those products
+	if (path.equals("/marketdata2")) {
+	    marketData.subscribe(req, resp);
+	    return;
+	}
+
+	// /result2?id=7&wait=5000 waits up to 5 secs for the order to be
+	// filled or time out, rather than answering UNKNOWN OR PENDING straight
+	// away
+	if (path.equals("/result2")) {
+	    LongPoll.answer(req, resp, results);
+	    return;
+	}
+
+	// /cancel2?userId=ant&productId=1&id=7 and /amend2, see OrderChanges
+	if (path.equals("/cancel2") || path.equals("/amend2")) {
+	    OrderChange change = OrderChanges.read(req, resp, kids.keySet(),
+		    path.equals("/amend2"));
+	    if (change != null) {
+		kids.get(change.getProductId()).tell(change,
+			ActorRef.noSender());
+		resp.getWriter().write(change.toJson());
+	    }
+	    return;
+	}
+
 	String who = req.getParameter("userId");
 	String productId = req.getParameter("productId");
 	int quantity = Integer.parseInt(req.getParameter("quantity"));
@@ -189,23 +161,14 @@ public class TradingEngineServletWithActors extends HttpServlet {
 	    po.setBuyer(new Buyer(who));
 	    engine.tell(po, ActorRef.noSender());
 
-	    resp.getWriter().write("\"id\":" + id + ", " + String.valueOf(po));
+	    resp.getWriter().write(po.toJson());
 	} else if (path.equals("/sell2")) {
 	    double price = Double.parseDouble(req.getParameter("price"));
 	    SalesOrder so = new SalesOrder(price, productId, quantity, id);
 	    so.setSeller(new Seller(who));
 	    engine.tell(so, ActorRef.noSender());
 
-	    resp.getWriter().write("\"id\":" + id + ", " + String.valueOf(so));
-	} else if (path.equals("/result2")) {
-	    String key = req.getParameter("id");
-	    Result r = results.get(key);
-	    if (r != null) {
-		results.remove(key);
-		resp.getWriter().write(r.data);
-	    } else {
-		resp.getWriter().write("UNKNOWN OR PENDING");
-	    }
+	    resp.getWriter().write(so.toJson());
 	} else {
 	    String msg = "Unknown command " + path;
 	    LOGGER.warn(msg);
@@ -213,20 +176,137 @@ public class TradingEngineServletWithActors extends HttpServlet {
 
     }
 
-    private static class Stats {
-	int totalSalesPerMinute;
+    // /batch2 with a body of one order per line, see BatchOrders
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+	    throws ServletException, IOException {
+	String path = req.getServletPath();
+	if (path.equals("/batch2")) {
+	    resp.setContentType("text/plain");
+	    BatchOrders<ActorRef> orders = new BatchOrders<>(kids,
+		    knownProducts, (actor, batch) -> actor.tell(batch,
+			    ActorRef.noSender()));
+	    int accepted = orders.process(req.getReader(), resp.getWriter());
+	    LOGGER.debug("accepted a batch of " + accepted + " orders");
+	} else {
+	    super.doPost(req, resp);
+	}
+    }
+
+    private static int getTotalSalesPerMinute() {
+	return shards.stream().mapToInt(shard -> shard.salesPerMinute).sum();
     }
 
-    private static class Result {
-	String data;
-	long created;
+    /**
+     * handles the events of one engine. every engine has its own, so that
+     * engines never wait for each other while results are built.
+     */
+    private static class EngineEvents implements Listener {
+	private final String[] productIds;
+	private volatile int salesPerMinute;
 
-	Result(String data) {
-	    this.data = data;
-	    this.created = System.currentTimeMillis();
+	EngineEvents(String[] productIds) {
+	    this.productIds = productIds;
+	}
+
+	@Override
+	public void onEvent(final EventType type, final Object data) {
+	    switch (type) {
+	    case SALE: {
+		Sale sale = (Sale) data;
+		int id = sale.getSalesOrder().getId();
+		results.addFill(id, sale.getProductId(), sale.getQuantity(),
+			sale.getPrice(), sale.getTime(), sale
+				.getSalesOrderRemaining());
+		if (sale.getSalesOrderRemaining() == 0) {
+		    String msg = "COMPLETED sales order";
+		    LOGGER.info("\n" + id + ") " + msg + " " + data);
+		} else {
+		    LOGGER.info("\n" + id + ") PARTIAL sales order " + data);
+		}
+		break;
+	    }
+	    case PURCHASE: {
+		Sale sale = (Sale) data;
+		int id = sale.getPurchaseOrder().getId();
+		results.addFill(id, sale.getProductId(), sale.getQuantity(),
+			sale.getPrice(), sale.getTime(), sale
+				.getPurchaseOrderRemaining());
+		if (sale.getPurchaseOrderRemaining() == 0) {
+		    String msg = "COMPLETED purchase order";
+		    LOGGER.info("\n" + id + ") " + msg + " " + data);
+		} else {
+		    LOGGER.info("\n" + id + ") PARTIAL purchase order "
+			    + data);
+		}
+		break;
+	    }
+	    case TIMEOUT_SALESORDER: {
+		timedoutSales.incrementAndGet();
+		SalesOrder so = (SalesOrder) data;
+		results.addTimeout(so.getId(), so.getProductId(),
+			so.getRemainingQuantity());
+		String msg = "TIMEOUT sales order";
+		LOGGER.info("\n" + so.getId() + ") " + msg + " " + data);
+		break;
+	    }
+	    case TIMEOUT_PURCHASEORDER: {
+		timedoutSales.incrementAndGet();
+		PurchaseOrder po = (PurchaseOrder) data;
+		results.addTimeout(po.getId(), po.getProductId(),
+			po.getRemainingQuantity());
+		String msg = "TIMEOUT purchase order";
+		LOGGER.info("\n" + po.getId() + ") " + msg + " " + data);
+		break;
+	    }
+	    case CANCELLED_SALESORDER: {
+		SalesOrder so = (SalesOrder) data;
+		results.addCancel(so.getId(), so.getProductId(),
+			so.getRemainingQuantity());
+		LOGGER.info("\n" + so.getId() + ") CANCELLED sales order "
+			+ data);
+		break;
+	    }
+	    case CANCELLED_PURCHASEORDER: {
+		PurchaseOrder po = (PurchaseOrder) data;
+		results.addCancel(po.getId(), po.getProductId(),
+			po.getRemainingQuantity());
+		LOGGER.info("\n" + po.getId() + ") CANCELLED purchase order "
+			+ data);
+		break;
+	    }
+	    case AMENDED_SALESORDER:
+	    case AMENDED_PURCHASEORDER: {
+		OrderChange change = (OrderChange) data;
+		results.amend(change.getOrderId(), change.getQuantity());
+		LOGGER.info("\n" + change.getOrderId() + ") AMENDED " + data);
+		break;
+	    }
+	    case STATS: {
+		@SuppressWarnings("unchecked")
+		Map<String, VolumeWindow> volumeWindows = (Map<String, VolumeWindow>) ((Object[]) data)[1];
+		@SuppressWarnings("unchecked")
+		Map<String, MarketPrice> marketPrices = (Map<String, MarketPrice>) ((Object[]) data)[0];
+		marketData.publish(marketPrices, volumeWindows);
+		int count = 0;
+		for (String productId : productIds) {
+		    VolumeWindow window = volumeWindows.get(productId);
+		    if (window != null && knownProducts.contains(productId)) {
+			count += window.getCount();
+		    }
+		}
+		// times 6 since stats are recorded for only the last ten
+		// secs, and we want them per minute
+		salesPerMinute = count * 6;
+		break;
+	    }
+	    default:
+		break;
+	    }
 	}
     }
 
+
     /**
      * using actors, we guarantee that only ever one thread accesses our trading
      * engine at any one time, and so we avoid having to synchronize!
@@ -236,10 +316,27 @@ public class TradingEngineServletWithActors extends HttpServlet {
 	private static final String RUN = "RUN";
 
 	// STATE
+	private final EngineEvents events;
 	private TradingEngine engine = new TradingEngine(DELAY, TIMEOUT, (type,
 		data) -> handle(type, data), true);
 
-	public TradingEngineActor() throws NamingException {
+	public TradingEngineActor(String name, EngineEvents events)
+		throws NamingException, IOException {
+	    this.events = events;
+	    engine.setMatchingMode(MATCHING_MODE);
+	    engine.setTradingPool(TRADING_POOL);
+	    MetricsServlet.register("actors", engine);
+	    engine.configurePersistence(PERSIST_QUEUE_CAPACITY,
+		    PERSIST_BATCH_SIZE, PERSIST_LINGER);
+	    if (JOURNAL_DIR != null) {
+		// the thread engines share the directory and their names
+		String file = "actors-" + name;
+		engine.openJournal(Paths.get(JOURNAL_DIR, file + ".journal"),
+			Paths.get(JOURNAL_DIR, file + ".snapshot"),
+			SNAPSHOT_INTERVAL);
+		// new orders must not reuse the ids of recovered ones
+		ID.accumulateAndGet(engine.getHighestOrderId() + 1, Math::max);
+	    }
 
 	    // INBOX
 	    receive(ReceiveBuilder
@@ -259,6 +356,14 @@ public class TradingEngineServletWithActors extends HttpServlet {
 					po.getProductId(),
 					po.getRemainingQuantity(), po.getId());
 			    })
+		    .match(OrderBatch.class, batch -> {
+			// BEHAVIOUR (delegated to engine)
+			engine.addOrders(batch);
+		    })
+		    .match(OrderChange.class, change -> {
+			// BEHAVIOUR (delegated to engine)
+			engine.changeOrder(change);
+		    })
 		    .match(String.class, s -> RUN.equals(s), command -> {
 			engine.run();
 		    })
@@ -269,13 +374,11 @@ public class TradingEngineServletWithActors extends HttpServlet {
 	}
 
 	private void handle(EventType type, Object data) {
-	    event(type, data);
+	    events.onEvent(type, data);
 	    if (type.equals(EventType.STOPPED)) {
 		self().tell(RUN, ActorRef.noSender()); // start another trading
 						       // engine!
 	    }
 	}
     }
-
 }
-
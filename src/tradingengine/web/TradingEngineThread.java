@@ -1,10 +1,30 @@
 package tradingengine.web;
 
+import static tradingengine.web.Constants.EVENT_QUEUE_CAPACITY;
+import static tradingengine.web.Constants.INGRESS_CAPACITY;
+import static tradingengine.web.Constants.JOURNAL_DIR;
+import static tradingengine.web.Constants.MATCHING_MODE;
+import static tradingengine.web.Constants.PERSIST_BATCH_SIZE;
+import static tradingengine.web.Constants.PERSIST_LINGER;
+import static tradingengine.web.Constants.PERSIST_QUEUE_CAPACITY;
+import static tradingengine.web.Constants.SNAPSHOT_INTERVAL;
+import static tradingengine.web.Constants.TRADING_POOL;
+import static tradingengine.web.Constants.WAIT_STRATEGY;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
 import javax.naming.NamingException;
 
+import tradingengine.model.OrderBatch;
+import tradingengine.model.OrderChange;
+import tradingengine.model.PurchaseOrder;
+import tradingengine.model.SalesOrder;
+import tradingengine.model.TradingEngine;
 import tradingengine.model.TradingEngine.Listener;
 import tradingengine.model.TradingEngine.MarketPrice;
 import tradingengine.model.TradingEngine.VolumeRecord;
+import tradingengine.model.WaitStrategy;
 
 /**
  * a simple delegate which caches buyers and sellers, just like the node.js
@@ -17,9 +37,26 @@ public class TradingEngineThread extends Thread {
     private final TradingEngine engine;
 
     public TradingEngineThread(long delay, long timeout, Listener listener)
-	    throws NamingException {
+	    throws NamingException, IOException {
 	super("engine-" + ID++);
 	engine = new TradingEngine(delay, timeout, listener);
+	engine.setMatchingMode(MATCHING_MODE);
+	engine.setTradingPool(TRADING_POOL);
+	engine.configurePersistence(PERSIST_QUEUE_CAPACITY, PERSIST_BATCH_SIZE,
+		PERSIST_LINGER);
+	engine.configureIngress(INGRESS_CAPACITY);
+	engine.dispatchEventsAsync(EVENT_QUEUE_CAPACITY);
+	engine.setWaitStrategy(WaitStrategy.named(WAIT_STRATEGY, delay));
+	if (JOURNAL_DIR != null) {
+	    // the actor engines share the directory and their names
+	    String file = "threads-" + getName();
+	    engine.openJournal(Paths.get(JOURNAL_DIR, file + ".journal"),
+		    Paths.get(JOURNAL_DIR, file + ".snapshot"),
+		    SNAPSHOT_INTERVAL);
+	    // new orders must not reuse the ids of recovered ones
+	    Constants.ID.accumulateAndGet(engine.getHighestOrderId() + 1,
+		    Math::max);
+	}
     }
 
     @Override
@@ -38,6 +75,19 @@ public class TradingEngineThread extends Thread {
 	return engine.addSalesOrder(who, productId, quantity, price, id);
     }
 
+    public void addOrders(OrderBatch batch) {
+	engine.addOrders(batch);
+    }
+
+    public void changeOrder(OrderChange change) {
+	engine.changeOrder(change);
+    }
+
+    /** @return the engine, eg for the gateway to add orders to directly */
+    public TradingEngine getEngine() {
+	return engine;
+    }
+
     public VolumeRecord getCurrentVolume(String productId) {
 	return engine.getCurrentVolume(productId);
     }